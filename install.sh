@@ -1,2 +1,18 @@
 #!/bin/sh
 cp build/libs/PiVision2020-all.jar runCamera /home/pi
+
+# Class data sharing: record the classes a warm-up run of the installed jar loads,
+# then dump them into an archive the JVM maps at startup instead of loading each class.
+# An archive only applies to the JVM and jar path it was dumped with, so both run here;
+# Java 11 compares the path as a string, so this is the same /home/pi path runCamera uses.
+java=${JAVA_HOME:+$JAVA_HOME/bin/}java
+classlist=/tmp/PiVision2020.classlist
+rm -f /home/pi/PiVision2020.jsa
+if env LD_LIBRARY_PATH=/usr/local/frc/lib $java -Xshare:off -XX:DumpLoadedClassList=$classlist \
+    -jar /home/pi/PiVision2020-all.jar --warmup; then
+  $java -Xshare:dump -XX:SharedClassListFile=$classlist \
+    -XX:SharedArchiveFile=/home/pi/PiVision2020.jsa -cp /home/pi/PiVision2020-all.jar
+else
+  echo "Warm-up run failed, starting without a class data sharing archive"
+fi
+rm -f $classlist
@@ -0,0 +1,204 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Resizes and thresholds images as horizontal bands, in parallel on a shared
+ * fork/join pool.
+ *
+ * <p>Each band reads and writes ROI sub-Mats of the caller's images, so the
+ * bands fill their rows of the shared output in place with no copies. A
+ * resize is only split when the source height is a whole multiple of the
+ * output height. Then every output row depends only on the source rows of
+ * its own band, and the result is identical to a single resize. Other
+ * resizes run as one pass. Thresholding is per pixel and always splits.
+ *
+ * <p>Holds per-band buffers, so each pipeline needs its own instance and only
+ * one thread may use it at a time.
+ */
+public final class BandProcessor {
+  private static final ForkJoinPool s_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  // Fewer rows than this per band cost more in task overhead than they save
+  private static final int kMinBandRows = 16;
+
+  private static final int kResize = 0;
+  private static final int kThreshold = 1;
+
+  /**
+   * One band's part of a resize or threshold.
+   */
+  private static final class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    int m_operation;
+    Mat m_input;
+    Mat m_output;
+    final Rect m_inputRows = new Rect();
+    final Rect m_outputRows = new Rect();
+    final Size m_size = new Size();
+    int m_interpolation;
+    ThresholdTable m_table;
+    VisionSettings m_settings;
+    final ThresholdTable.Buffers m_buffers = new ThresholdTable.Buffers();
+    boolean m_applied;
+
+    @Override
+    protected void compute() {
+      Mat input = m_input.submat(m_inputRows);
+      Mat output = m_output.submat(m_outputRows);
+      if (m_operation == kResize) {
+        m_size.width = m_outputRows.width;
+        m_size.height = m_outputRows.height;
+        Imgproc.resize(input, output, m_size, 0.0, 0.0, m_interpolation);
+      } else {
+        m_applied = m_table.apply(input, output, m_buffers, m_settings);
+      }
+      input.release();
+      output.release();
+    }
+  }
+
+  /**
+   * Runs the bands in use, the first on the pool thread itself.
+   */
+  private final class Split extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void compute() {
+      for (int i = 1; i < m_count; i++) {
+        m_tasks[i].fork();
+      }
+      m_tasks[0].invoke();
+      for (int i = 1; i < m_count; i++) {
+        m_tasks[i].join();
+      }
+    }
+  }
+
+  private final Band[] m_tasks;
+  private final Split m_split = new Split();
+  private final Size m_size = new Size();
+  private int m_count;
+
+  /**
+   * One band per core.
+   */
+  public static int autoBands() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Create a processor.
+   * @param bands the most bands to split an image into
+   */
+  public BandProcessor(int bands) {
+    m_tasks = new Band[Math.max(1, bands)];
+    for (int i = 0; i < m_tasks.length; i++) {
+      m_tasks[i] = new Band();
+    }
+  }
+
+  /**
+   * The most bands an image is split into.
+   */
+  public int bands() {
+    return m_tasks.length;
+  }
+
+  /**
+   * Resize an image, in bands when the heights allow it.
+   * @param input the image to resize
+   * @param output the image to hold the result
+   * @param width the output width in pixels
+   * @param height the output height in pixels
+   * @param interpolation the interpolation, e.g. Imgproc.INTER_LINEAR
+   */
+  public void resize(Mat input, Mat output, int width, int height, int interpolation) {
+    int bands = bandCount(height);
+    if (bands <= 1 || input.rows() % height != 0) {
+      m_size.width = width;
+      m_size.height = height;
+      Imgproc.resize(input, output, m_size, 0.0, 0.0, interpolation);
+      return;
+    }
+
+    int factor = input.rows() / height;
+    output.create(height, width, input.type());
+    for (int i = 0; i < bands; i++) {
+      Band band = m_tasks[i];
+      int y0 = height * i / bands;
+      int y1 = height * (i + 1) / bands;
+      band.m_operation = kResize;
+      band.m_input = input;
+      band.m_output = output;
+      set(band.m_inputRows, 0, y0 * factor, input.cols(), (y1 - y0) * factor);
+      set(band.m_outputRows, 0, y0, width, y1 - y0);
+      band.m_interpolation = interpolation;
+    }
+    run(bands);
+  }
+
+  /**
+   * Threshold one area of a BGR image into the same area of a mask, in bands.
+   * @param table the threshold table
+   * @param image the BGR image
+   * @param mask the mask, already allocated at the image's size
+   * @param area the area to threshold
+   * @param settings the snapshot whose HSV bounds to threshold with
+   * @return false if the table for those bounds is not ready and the mask was not written
+   */
+  public boolean threshold(ThresholdTable table, Mat image, Mat mask, Rect area, VisionSettings settings) {
+    if (!table.isReady(settings)) {
+      return false;
+    }
+    int bands = bandCount(area.height);
+    for (int i = 0; i < bands; i++) {
+      Band band = m_tasks[i];
+      int y0 = area.y + area.height * i / bands;
+      int y1 = area.y + area.height * (i + 1) / bands;
+      band.m_operation = kThreshold;
+      band.m_input = image;
+      band.m_output = mask;
+      set(band.m_inputRows, area.x, y0, area.width, y1 - y0);
+      set(band.m_outputRows, area.x, y0, area.width, y1 - y0);
+      band.m_table = table;
+      band.m_settings = settings;
+    }
+    if (bands <= 1) {
+      m_tasks[0].compute();
+    } else {
+      run(bands);
+    }
+
+    boolean applied = true;
+    for (int i = 0; i < bands; i++) {
+      applied &= m_tasks[i].m_applied;
+    }
+    return applied;
+  }
+
+  private int bandCount(int rows) {
+    return Math.max(1, Math.min(m_tasks.length, rows / kMinBandRows));
+  }
+
+  private void run(int bands) {
+    m_count = bands;
+    for (int i = 0; i < bands; i++) {
+      m_tasks[i].reinitialize();
+    }
+    m_split.reinitialize();
+    s_pool.invoke(m_split);
+  }
+
+  private static void set(Rect rect, int x, int y, int width, int height) {
+    rect.x = x;
+    rect.y = y;
+    rect.width = width;
+    rect.height = height;
+  }
+}
@@ -0,0 +1,247 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * A camera's lens calibration: intrinsics and distortion coefficients.
+ *
+ * <p>Calibrations are made offline from chessboard images with
+ * {@code Main --calibrate} and saved as JSON. At runtime only the few points
+ * that are published are undistorted, never the whole frame. The camera
+ * matrix is scaled to the image size being processed, so one calibration
+ * serves every processing resolution with the same aspect ratio.
+ *
+ * <p>Holds scratch buffers, so each pipeline needs its own instance.
+ */
+public final class CameraCalibration {
+  private final int m_width;
+  private final int m_height;
+  private final double[] m_cameraValues;
+  private final MatOfDouble m_distCoeffs;
+
+  // Camera matrix scaled to the last image size asked for
+  private final Mat m_cameraMatrix = Mat.zeros(3, 3, CvType.CV_64F);
+  private final double[] m_scaledValues = new double[9];
+  private int m_scaledWidth;
+  private int m_scaledHeight;
+
+  private final MatOfPoint2f m_distorted = new MatOfPoint2f();
+  private final MatOfPoint2f m_undistorted = new MatOfPoint2f();
+  private final float[] m_point = new float[2];
+
+  private CameraCalibration(int width, int height, double[] cameraValues, double[] distCoeffs) {
+    m_width = width;
+    m_height = height;
+    m_cameraValues = cameraValues;
+    m_distCoeffs = new MatOfDouble(distCoeffs);
+    m_distorted.alloc(1);
+  }
+
+  /**
+   * Read a calibration saved by {@link #calibrate}.
+   * @param file the calibration JSON file
+   * @return the calibration, or null if it could not be read
+   */
+  public static CameraCalibration load(String file) {
+    try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+      JsonObject obj = new JsonParser().parse(reader).getAsJsonObject();
+      int width = obj.get("width").getAsInt();
+      int height = obj.get("height").getAsInt();
+      double[] camera = toArray(obj.getAsJsonArray("camera matrix"));
+      double[] dist = toArray(obj.getAsJsonArray("distortion"));
+      if (camera.length != 9) {
+        System.err.println("calibration '" + file + "': camera matrix must have 9 values");
+        return null;
+      }
+      return new CameraCalibration(width, height, camera, dist);
+    } catch (IOException | RuntimeException ex) {
+      System.err.println("could not read calibration '" + file + "': " + ex);
+      return null;
+    }
+  }
+
+  /**
+   * A copy with its own scratch buffers, for use on another thread.
+   */
+  public CameraCalibration copy() {
+    return new CameraCalibration(m_width, m_height, m_cameraValues, m_distCoeffs.toArray());
+  }
+
+  /**
+   * The camera matrix for an image of the given size.
+   * The returned Mat is reused by the next call with another size.
+   */
+  public Mat cameraMatrix(int width, int height) {
+    if (width != m_scaledWidth || height != m_scaledHeight) {
+      double sx = (double) width / m_width;
+      double sy = (double) height / m_height;
+      m_scaledValues[0] = m_cameraValues[0] * sx;
+      m_scaledValues[1] = m_cameraValues[1] * sx;
+      // Pixel centers: x' + 0.5 = (x + 0.5) * s
+      m_scaledValues[2] = (m_cameraValues[2] + 0.5) * sx - 0.5;
+      m_scaledValues[4] = m_cameraValues[4] * sy;
+      m_scaledValues[5] = (m_cameraValues[5] + 0.5) * sy - 0.5;
+      m_scaledValues[8] = 1.0;
+      m_cameraMatrix.put(0, 0, m_scaledValues);
+      m_scaledWidth = width;
+      m_scaledHeight = height;
+    }
+    return m_cameraMatrix;
+  }
+
+  /**
+   * The distortion coefficients.
+   */
+  public MatOfDouble distCoeffs() {
+    return m_distCoeffs;
+  }
+
+  /**
+   * Undistort one image point onto the normalized image plane (z = 1).
+   * @param x the pixel x coordinate
+   * @param y the pixel y coordinate
+   * @param width the width of the image the point is in
+   * @param height the height of the image the point is in
+   * @param normalized set to the undistorted x/z and y/z, with y down
+   */
+  public void undistort(double x, double y, int width, int height, double[] normalized) {
+    m_point[0] = (float) x;
+    m_point[1] = (float) y;
+    m_distorted.put(0, 0, m_point);
+    Imgproc.undistortPoints(m_distorted, m_undistorted, cameraMatrix(width, height), m_distCoeffs);
+    m_undistorted.get(0, 0, m_point);
+    normalized[0] = m_point[0];
+    normalized[1] = m_point[1];
+  }
+
+  /**
+   * Calibrate from chessboard images and save the result.
+   * @param path a directory of chessboard images or a video file
+   * @param cols the number of inner corners along the board's width
+   * @param rows the number of inner corners along the board's height
+   * @param squareSize the side of one square, in any unit
+   * @param outFile the file to save the calibration to
+   * @return false if there were not enough usable images
+   */
+  public static boolean calibrate(String path, int cols, int rows, double squareSize, String outFile) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    List<Mat> images = ReplayVision.loadFrames(path);
+    if (images.isEmpty()) {
+      System.err.println("calibrate: no images could be read from '" + path + "'");
+      return false;
+    }
+
+    Size boardSize = new Size(cols, rows);
+    Point3[] board = new Point3[cols * rows];
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < cols; c++) {
+        board[r * cols + c] = new Point3(c * squareSize, r * squareSize, 0.0);
+      }
+    }
+    MatOfPoint3f boardPoints = new MatOfPoint3f(board);
+
+    List<Mat> objectPoints = new ArrayList<>();
+    List<Mat> imagePoints = new ArrayList<>();
+    Size imageSize = null;
+    Mat gray = new Mat();
+    TermCriteria subPixCriteria = new TermCriteria(TermCriteria.EPS + TermCriteria.MAX_ITER, 30, 0.001);
+    for (int i = 0; i < images.size(); i++) {
+      Mat image = images.get(i);
+      if (imageSize == null) {
+        imageSize = image.size();
+      } else if (!imageSize.equals(image.size())) {
+        System.err.println("calibrate: skipping image " + i + ", size differs from the first image");
+        continue;
+      }
+
+      Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+      MatOfPoint2f corners = new MatOfPoint2f();
+      if (!Calib3d.findChessboardCorners(gray, boardSize, corners,
+          Calib3d.CALIB_CB_ADAPTIVE_THRESH + Calib3d.CALIB_CB_NORMALIZE_IMAGE)) {
+        System.out.println("image " + i + ": no chessboard found");
+        continue;
+      }
+      Imgproc.cornerSubPix(gray, corners, new Size(11, 11), new Size(-1, -1), subPixCriteria);
+      objectPoints.add(boardPoints);
+      imagePoints.add(corners);
+    }
+
+    if (imagePoints.size() < 3) {
+      System.err.println("calibrate: found the chessboard in only " + imagePoints.size()
+          + " image(s), need at least 3");
+      return false;
+    }
+
+    Mat cameraMatrix = new Mat();
+    Mat distCoeffs = new Mat();
+    double rms = Calib3d.calibrateCamera(objectPoints, imagePoints, imageSize, cameraMatrix, distCoeffs,
+        new ArrayList<>(), new ArrayList<>());
+
+    double[] camera = new double[9];
+    cameraMatrix.get(0, 0, camera);
+    double[] dist = new double[(int) distCoeffs.total()];
+    distCoeffs.get(0, 0, dist);
+
+    JsonObject obj = new JsonObject();
+    obj.addProperty("width", (int) imageSize.width);
+    obj.addProperty("height", (int) imageSize.height);
+    obj.add("camera matrix", toJson(camera));
+    obj.add("distortion", toJson(dist));
+    obj.addProperty("rms error", rms);
+    obj.addProperty("images", imagePoints.size());
+
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    try (Writer writer = Files.newBufferedWriter(Paths.get(outFile))) {
+      gson.toJson(obj, writer);
+    } catch (IOException ex) {
+      System.err.println("could not save calibration to '" + outFile + "': " + ex);
+      return false;
+    }
+
+    System.out.println(String.format("Calibrated from %d of %d images, %dx%d, rms error %.3f px",
+        imagePoints.size(), images.size(), (int) imageSize.width, (int) imageSize.height, rms));
+    System.out.println(String.format("fx %.1f  fy %.1f  cx %.1f  cy %.1f",
+        camera[0], camera[4], camera[2], camera[5]));
+    System.out.println("Saved to " + outFile);
+    return true;
+  }
+
+  private static double[] toArray(JsonArray array) {
+    double[] values = new double[array.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = array.get(i).getAsDouble();
+    }
+    return values;
+  }
+
+  private static JsonArray toJson(double[] values) {
+    JsonArray array = new JsonArray();
+    for (double v : values) {
+      array.add(v);
+    }
+    return array;
+  }
+}
@@ -0,0 +1,298 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import edu.wpi.cscore.VideoSink;
+import edu.wpi.cscore.VideoSource;
+import edu.wpi.first.cameraserver.CameraServer;
+
+/**
+ * Watches the config file and applies changes without restarting.
+ *
+ * <p>The new file is compared camera by camera (by name) with the running
+ * config. Changed camera settings and stream settings are applied with
+ * setConfigJson on the existing camera and server. A camera whose path
+ * changed is restarted, new cameras are started and removed ones stopped.
+ * Vision keeps running on every camera whose vision settings did not change,
+ * unless a top-level vision setting or the pipeline profiles changed, which
+ * restarts vision on every camera.
+ *
+ * <p>The file is parsed into a new Main.Config first, and nothing is applied
+ * if that fails.
+ */
+public final class ConfigReloader {
+  private static final long kSettleMillis = 250;
+  // Top-level keys every camera's vision is started with
+  private static final String[] kVisionKeys = {"vision mode", "vision buffers", "bands", "low latency publish",
+      "vision settings", "load governor", "detection", "detector", "target filter", "profiles"};
+
+  /**
+   * What changed between two camera lists.
+   */
+  static final class CameraDiff {
+    final List<Main.CameraConfig> added = new ArrayList<>();
+    final List<Main.CameraConfig> removed = new ArrayList<>();
+    // path changed, so the camera must be reopened
+    final List<Main.CameraConfig> restarted = new ArrayList<>();
+    final List<Main.CameraConfig> reconfigured = new ArrayList<>();
+    final List<Main.CameraConfig> restreamed = new ArrayList<>();
+    // vision on/off, table, debug stream, calibration, recording or udp changed
+    final List<Main.CameraConfig> revisioned = new ArrayList<>();
+
+    boolean isEmpty() {
+      return added.isEmpty() && removed.isEmpty() && restarted.isEmpty()
+          && reconfigured.isEmpty() && restreamed.isEmpty() && revisioned.isEmpty();
+    }
+  }
+
+  private final Path m_file;
+
+  /**
+   * Create a reloader.
+   * @param configFile the config file that was read at startup
+   */
+  public ConfigReloader(String configFile) {
+    m_file = Paths.get(configFile).toAbsolutePath();
+  }
+
+  /**
+   * Start watching the file on a daemon thread.
+   */
+  public void start() {
+    Thread thread = new Thread(this::watch, "Config reloader");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void watch() {
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      // Watch the directory, since editors often replace the file
+      m_file.getParent().register(watcher,
+          StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+      System.out.println("Watching '" + m_file + "' for changes");
+
+      for (;;) {
+        WatchKey key = watcher.take();
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (m_file.getFileName().equals(event.context())) {
+            changed = true;
+          }
+        }
+        key.reset();
+
+        if (changed) {
+          // Let the writer finish, then drop the events it caused
+          Thread.sleep(kSettleMillis);
+          WatchKey more = watcher.poll();
+          if (more != null) {
+            more.pollEvents();
+            more.reset();
+          }
+          reload();
+        }
+      }
+    } catch (IOException ex) {
+      System.err.println("could not watch '" + m_file + "': " + ex);
+    } catch (InterruptedException ex) {
+      // exit quietly
+    }
+  }
+
+  /**
+   * Re-read the config file and apply what changed.
+   * @return false if the file could not be read; the running config is kept
+   */
+  public synchronized boolean reload() {
+    Main.Config old = Main.config;
+    Main.Config next = Main.readConfig();
+    if (next == null) {
+      System.err.println("config reload failed, keeping the running config");
+      return false;
+    }
+    System.out.println("Reloading '" + m_file + "'");
+
+    if (next.team != old.team || next.server != old.server) {
+      System.err.println("team number and ntmode changes need a restart");
+    }
+
+    List<Main.CameraConfig> oldConfigs = old.cameras;
+    List<Main.CameraConfig> newConfigs = next.cameras;
+    List<VideoSource> oldCameras = Main.cameras;
+
+    Map<String, VideoSource> running = new HashMap<>();
+    for (int i = 0; i < oldConfigs.size(); i++) {
+      running.put(oldConfigs.get(i).name, oldCameras.get(i));
+    }
+
+    CameraDiff diff = diffCameras(oldConfigs, newConfigs);
+    String visionKey = changedVisionKey(old.json, next.json);
+    if (visionKey != null) {
+      System.out.println("'" + visionKey + "' changed, restarting vision");
+      for (Main.CameraConfig config : newConfigs) {
+        if (!diff.added.contains(config) && !diff.restarted.contains(config) && !diff.revisioned.contains(config)) {
+          diff.revisioned.add(config);
+        }
+      }
+    }
+    Gson gson = new GsonBuilder().create();
+
+    for (Main.CameraConfig config : diff.removed) {
+      Main.stopVision(config.name);
+      Main.stopCamera(config.name, running.remove(config.name));
+    }
+    for (Main.CameraConfig config : diff.restarted) {
+      Main.stopVision(config.name);
+      Main.stopCamera(config.name, running.remove(config.name));
+      running.put(config.name, Main.startCamera(config));
+    }
+    for (Main.CameraConfig config : diff.added) {
+      running.put(config.name, Main.startCamera(config));
+    }
+    for (Main.CameraConfig config : diff.reconfigured) {
+      System.out.println("Reconfiguring camera '" + config.name + "'");
+      running.get(config.name).setConfigJson(gson.toJson(config.config));
+    }
+    for (Main.CameraConfig config : diff.restreamed) {
+      VideoSink server = CameraServer.getInstance().getServer("serve_" + config.name);
+      if (server == null) {
+        continue;
+      }
+      if (config.streamConfig == null) {
+        System.err.println("camera '" + config.name + "': removed stream settings apply after a restart");
+        continue;
+      }
+      System.out.println("Reconfiguring stream for camera '" + config.name + "'");
+      server.setConfigJson(gson.toJson(config.streamConfig));
+    }
+
+    // switch to the new camera list before starting vision and switched cameras
+    List<VideoSource> newCameras = new ArrayList<>();
+    for (Main.CameraConfig config : newConfigs) {
+      newCameras.add(running.get(config.name));
+    }
+    Main.cameras = newCameras;
+    Main.config = next;
+
+    for (Main.CameraConfig config : diff.revisioned) {
+      Main.stopVision(config.name);
+    }
+    for (Main.CameraConfig config : newConfigs) {
+      if (diff.added.contains(config) || diff.restarted.contains(config) || diff.revisioned.contains(config)) {
+        Main.startVision(config, running.get(config.name));
+      }
+    }
+
+    applySwitchedCameras(old.switchedCameras, next.switchedCameras);
+
+    if (diff.isEmpty()) {
+      System.out.println("No camera changes");
+    }
+    return true;
+  }
+
+  /**
+   * Compare two camera lists by name.
+   * Does not touch any camera, so it can be used without hardware.
+   */
+  static CameraDiff diffCameras(List<Main.CameraConfig> oldConfigs, List<Main.CameraConfig> newConfigs) {
+    CameraDiff diff = new CameraDiff();
+
+    Map<String, Main.CameraConfig> oldByName = new HashMap<>();
+    for (Main.CameraConfig config : oldConfigs) {
+      oldByName.put(config.name, config);
+    }
+
+    for (Main.CameraConfig config : newConfigs) {
+      Main.CameraConfig old = oldByName.remove(config.name);
+      if (old == null) {
+        diff.added.add(config);
+        continue;
+      }
+      if (!Objects.equals(old.path, config.path)) {
+        diff.restarted.add(config);
+        continue;
+      }
+      if (!cameraSettings(old).equals(cameraSettings(config))) {
+        diff.reconfigured.add(config);
+      }
+      if (!Objects.equals(old.streamConfig, config.streamConfig)) {
+        diff.restreamed.add(config);
+      }
+      if (!Objects.equals(old.vision, config.vision) || !Objects.equals(old.table, config.table)
+          || !Objects.equals(old.debugStream, config.debugStream)
+          || !Objects.equals(old.calibration, config.calibration)
+          || !Objects.equals(old.record, config.record)
+          || !Objects.equals(old.udp, config.udp)) {
+        diff.revisioned.add(config);
+      }
+    }
+    diff.removed.addAll(oldByName.values());
+    return diff;
+  }
+
+  /**
+   * The camera's own settings, without the keys handled elsewhere.
+   */
+  private static JsonObject cameraSettings(Main.CameraConfig config) {
+    JsonObject settings = config.config.deepCopy();
+    settings.remove("stream");
+    settings.remove("vision");
+    settings.remove("table");
+    settings.remove("debug stream");
+    settings.remove("calibration");
+    settings.remove("record");
+    settings.remove("udp");
+    return settings;
+  }
+
+  /**
+   * The first top-level key read by startVision whose value differs, including
+   * one that was added or removed.
+   * @return the key, or null if vision can keep running
+   */
+  static String changedVisionKey(JsonObject oldJson, JsonObject newJson) {
+    for (String key : kVisionKeys) {
+      if (!Objects.equals(oldJson.get(key), newJson.get(key))) {
+        return key;
+      }
+    }
+    return null;
+  }
+
+  private static void applySwitchedCameras(List<Main.SwitchedCameraConfig> oldSwitched,
+      List<Main.SwitchedCameraConfig> newSwitched) {
+    Map<String, Main.SwitchedCameraConfig> oldByName = new HashMap<>();
+    for (Main.SwitchedCameraConfig config : oldSwitched) {
+      oldByName.put(config.name, config);
+    }
+
+    for (Main.SwitchedCameraConfig config : newSwitched) {
+      Main.SwitchedCameraConfig old = oldByName.remove(config.name);
+      if (old != null && old.key.equals(config.key)) {
+        continue;
+      }
+      if (old != null) {
+        Main.stopSwitchedCamera(old);
+      }
+      Main.startSwitchedCamera(config);
+    }
+    for (Main.SwitchedCameraConfig old : oldByName.values()) {
+      Main.stopSwitchedCamera(old);
+    }
+  }
+}
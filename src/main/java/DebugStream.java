@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.VideoSink;
+import edu.wpi.first.cameraserver.CameraServer;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * An annotated MJPEG stream showing what the pipeline accepted.
+ *
+ * <p>The pipeline offers every frame, but a frame is only taken when the
+ * stream has a connected client and the stream's frame period has passed.
+ * Taking a frame copies the image and the filtered contours; drawing,
+ * scaling and encoding happen on the stream's own thread. With no clients
+ * the cost per frame is one check of the source's enabled flag.
+ */
+public final class DebugStream {
+  private static final Scalar kContourColor = new Scalar(0, 0, 255);
+  private static final Scalar kCenterColor = new Scalar(255, 0, 255);
+  private static final Scalar kTextColor = new Scalar(255, 255, 255);
+
+  private final String m_name;
+  private final CvSource m_output;
+  private final long m_periodNanos;
+  private final Size m_size;
+  private final boolean m_showMask;
+
+  // Handoff from the pipeline; written only while m_pending is false
+  private final Mat m_image = new Mat();
+  private final List<MatOfPoint> m_contours = new ArrayList<>();
+  private int m_contourCount;
+  private final Point m_bestCenter = new Point();
+  private double m_bestAngleX;
+  private double m_bestAngleY;
+  private volatile boolean m_pending;
+  private long m_nextDue;
+
+  // Render thread buffers
+  private final Mat m_render = new Mat();
+  private final Mat m_scaled = new Mat();
+  private final List<MatOfPoint> m_drawList = new ArrayList<>();
+
+  private final Thread m_thread;
+
+  /**
+   * Create the stream and start its render thread.
+   * @param name the stream name shown by the MJPEG server
+   * @param fps the maximum stream rate
+   * @param width the stream width
+   * @param height the stream height
+   * @param showMask true to show the threshold mask, false for the camera image
+   */
+  public DebugStream(String name, double fps, int width, int height, boolean showMask) {
+    m_name = name;
+    m_output = CameraServer.getInstance().putVideo(name, width, height);
+    m_periodNanos = (long) (1e9 / fps);
+    m_size = new Size(width, height);
+    m_showMask = showMask;
+
+    m_thread = new Thread(this::renderLoop, "Debug stream " + name);
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+   * Offer a processed frame. Returns immediately unless the stream wants it.
+   * @param frame the resized camera image
+   * @param mask the threshold mask
+   * @param contours the contours that passed the filter
+   * @param targets the ranked targets, with the best target's angles set by the publish step
+   */
+  public void offer(Mat frame, Mat mask, List<MatOfPoint> contours, TargetRanker.Targets targets) {
+    if (m_pending || !m_output.isEnabled()) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (now - m_nextDue < 0) {
+      return;
+    }
+    m_nextDue = now + m_periodNanos;
+
+    synchronized (this) {
+      (m_showMask ? mask : frame).copyTo(m_image);
+      for (int i = 0; i < contours.size(); i++) {
+        if (i == m_contours.size()) {
+          m_contours.add(new MatOfPoint());
+        }
+        contours.get(i).copyTo(m_contours.get(i));
+      }
+      m_contourCount = contours.size();
+      int best = targets.best();
+      if (best >= 0) {
+        m_bestCenter.x = targets.centerX[best];
+        m_bestCenter.y = targets.centerY[best];
+        m_bestAngleX = targets.angleX;
+        m_bestAngleY = targets.angleY;
+      }
+      m_pending = true;
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stop the render thread and remove the stream.
+   */
+  public void stop() {
+    m_thread.interrupt();
+    CameraServer inst = CameraServer.getInstance();
+    VideoSink server = inst.getServer("serve_" + m_name);
+    inst.removeServer("serve_" + m_name);
+    if (server != null) {
+      server.close();
+    }
+    inst.removeCamera(m_name);
+    m_output.close();
+  }
+
+  private void renderLoop() {
+    try {
+      for (;;) {
+        synchronized (this) {
+          while (!m_pending) {
+            wait();
+          }
+          render();
+          m_pending = false;
+        }
+      }
+    } catch (InterruptedException ex) {
+      // exit quietly
+    }
+  }
+
+  private void render() {
+    if (m_image.channels() == 1) {
+      Imgproc.cvtColor(m_image, m_render, Imgproc.COLOR_GRAY2BGR);
+    } else {
+      m_image.copyTo(m_render);
+    }
+
+    m_drawList.clear();
+    for (int i = 0; i < m_contourCount; i++) {
+      m_drawList.add(m_contours.get(i));
+    }
+    Imgproc.drawContours(m_render, m_drawList, -1, kContourColor, 1);
+
+    String text = "ct " + m_contourCount;
+    if (m_contourCount >= 1) {
+      Imgproc.drawMarker(m_render, m_bestCenter, kCenterColor, Imgproc.MARKER_CROSS, 10, 1, Imgproc.LINE_8);
+      text += String.format("  tx %.1f  ty %.1f", m_bestAngleX, m_bestAngleY);
+    }
+    Imgproc.putText(m_render, text, new Point(4, 14), Core.FONT_HERSHEY_PLAIN, 1.0, kTextColor);
+
+    if (m_render.cols() != (int) m_size.width || m_render.rows() != (int) m_size.height) {
+      Imgproc.resize(m_render, m_scaled, m_size, 0.0, 0.0, Imgproc.INTER_AREA);
+      m_output.putFrame(m_scaled);
+    } else {
+      m_output.putFrame(m_render);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+import edu.wpi.cscore.CvSink;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.cscore.VideoSource;
+import edu.wpi.first.cameraserver.CameraServer;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+
+import org.opencv.core.Mat;
+
+/**
+ * Grabs frames from a camera into the caller's buffers and keeps count of
+ * how well the camera is keeping up.
+ *
+ * <p>Each grab waits at most {@link #kTimeoutSeconds}. A camera that has sent
+ * no frame for {@link #kStallMicros} is closed, waiting up to
+ * {@link #kCloseTimeoutMs} for it to disconnect, and reopened; it counts as a
+ * reconnect once frames come in again. Frame times are
+ * cscore timestamps, on the same clock as NetworkTables. A frame counts as
+ * late when it is more than one camera frame period old by the time it is
+ * grabbed. Gaps of more than one period between frame times count as
+ * dropped frames.
+ *
+ * <p>Counts go to the {@code capture} subtable of the pipeline's table:
+ * timeouts, reconnects, dropped and late.
+ */
+public final class FrameGrabber {
+  static final double kTimeoutSeconds = 0.5;
+  static final long kStallMicros = 2_000_000L;
+  static final long kCloseTimeoutMs = 2000;
+  private static final long kClosePollMs = 20;
+
+  private final VideoSource m_camera;
+  private final CvSink m_cvSink;
+
+  private long m_periodMicros;
+  private long m_lastFrameTime;
+  private long m_lastFrameNow;
+  private long m_lastReconnect;
+  private boolean m_timingOut;
+  private boolean m_reconnecting;
+
+  private long m_timeouts;
+  private long m_reconnects;
+  private long m_dropped;
+  private long m_late;
+
+  private final NetworkTableEntry m_timeoutsEntry;
+  private final NetworkTableEntry m_reconnectsEntry;
+  private final NetworkTableEntry m_droppedEntry;
+  private final NetworkTableEntry m_lateEntry;
+
+  /**
+   * Create a grabber with its own sink on the camera.
+   * @param camera the camera to grab from
+   * @param table the pipeline's table to publish capture counts under, or null
+   */
+  public FrameGrabber(VideoSource camera, NetworkTable table) {
+    m_camera = camera;
+    m_cvSink = CameraServer.getInstance().getVideo(camera);
+    updatePeriod();
+    m_lastFrameNow = NetworkTablesJNI.now();
+
+    if (table != null) {
+      NetworkTable capture = table.getSubTable("capture");
+      m_timeoutsEntry = capture.getEntry("timeouts");
+      m_reconnectsEntry = capture.getEntry("reconnects");
+      m_droppedEntry = capture.getEntry("dropped");
+      m_lateEntry = capture.getEntry("late");
+    } else {
+      m_timeoutsEntry = null;
+      m_reconnectsEntry = null;
+      m_droppedEntry = null;
+      m_lateEntry = null;
+    }
+  }
+
+  /**
+   * Grab the next frame into a buffer.
+   * @param frame the buffer to fill; reused as-is when the size and type match
+   * @return the frame's capture time in NT/cscore microseconds, or 0 if no frame came in time
+   */
+  public long grab(Mat frame) {
+    long frameTime = m_cvSink.grabFrame(frame, kTimeoutSeconds);
+    long now = NetworkTablesJNI.now();
+
+    if (frameTime == 0) {
+      m_timeouts++;
+      set(m_timeoutsEntry, m_timeouts);
+      if (!m_timingOut) {
+        System.err.println("capture error on '" + m_camera.getName() + "': " + m_cvSink.getError());
+        m_timingOut = true;
+      }
+      if (now - m_lastFrameNow > kStallMicros && now - m_lastReconnect > kStallMicros) {
+        reconnect();
+      }
+      return 0;
+    }
+
+    if (m_reconnecting) {
+      System.out.println("camera '" + m_camera.getName() + "' reconnected");
+      m_reconnects++;
+      set(m_reconnectsEntry, m_reconnects);
+      m_reconnecting = false;
+      m_timingOut = false;
+      // the reopened camera may have come back in a different mode
+      updatePeriod();
+    } else if (m_timingOut) {
+      System.out.println("capture on '" + m_camera.getName() + "' resumed");
+      m_timingOut = false;
+    }
+    m_lastFrameNow = now;
+
+    if (m_periodMicros > 0) {
+      if (m_lastFrameTime != 0) {
+        long missed = (frameTime - m_lastFrameTime + m_periodMicros / 2) / m_periodMicros - 1;
+        if (missed > 0) {
+          m_dropped += missed;
+          set(m_droppedEntry, m_dropped);
+        }
+      }
+      if (now - frameTime > m_periodMicros) {
+        m_late++;
+        set(m_lateEntry, m_late);
+      }
+    }
+    m_lastFrameTime = frameTime;
+    return frameTime;
+  }
+
+  /**
+   * Timeouts, reconnects, dropped and late frame counts so far.
+   */
+  public long[] counts() {
+    return new long[] {m_timeouts, m_reconnects, m_dropped, m_late};
+  }
+
+  /**
+   * Free the sink's name so the camera can get a new sink right away,
+   * while a grab on another thread may still be finishing.
+   */
+  public void unregister() {
+    CameraServer.getInstance().removeServer(m_cvSink.getName());
+  }
+
+  /**
+   * Release the sink. Must not be called while a grab is in progress.
+   */
+  public void close() {
+    unregister();
+    m_cvSink.close();
+  }
+
+  private void reconnect() {
+    System.err.println("camera '" + m_camera.getName() + "' stalled, reconnecting");
+    m_camera.setConnectionStrategy(VideoSource.ConnectionStrategy.kForceClose);
+    // cscore closes the device on its own thread; reopening before it has would do nothing
+    long deadline = System.currentTimeMillis() + kCloseTimeoutMs;
+    try {
+      while (m_camera.isConnected() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(kClosePollMs);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    if (m_camera.isConnected()) {
+      System.err.println("camera '" + m_camera.getName() + "' did not close within " + kCloseTimeoutMs + " ms");
+    }
+    // back to what startCamera set, so the camera stays open with no stream clients
+    m_camera.setConnectionStrategy(VideoSource.ConnectionStrategy.kKeepOpen);
+    // counted in grab once frames come in again
+    m_reconnecting = true;
+    m_lastReconnect = NetworkTablesJNI.now();
+    m_lastFrameTime = 0;
+  }
+
+  private void updatePeriod() {
+    VideoMode mode = m_camera.getVideoMode();
+    m_periodMicros = (mode != null && mode.fps > 0) ? 1_000_000L / mode.fps : 0;
+  }
+
+  private static void set(NetworkTableEntry entry, long value) {
+    if (entry != null) {
+      entry.setDouble(value);
+    }
+  }
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Records processed frames and their results to a ring file, for replaying
+ * what the camera saw after a match.
+ *
+ * <p>The file is filled with zeros to its full size, so its blocks are
+ * really allocated and a full disk shows up as an error before recording
+ * starts rather than as a crash on a later write, and then memory-mapped. It
+ * holds a header and a fixed number of equal slots, each with one frame's
+ * results and its resized image, raw or JPEG-encoded. When the ring is full
+ * the oldest slot is overwritten. A file left by the previous run is kept as
+ * {@code <file>.prev}, so a reboot after a brownout does not wipe the match.
+ *
+ * <p>The publish step only copies the image into a free buffer and queues
+ * it; filling the file, encoding and writing happen on the recorder's own
+ * thread. When no
+ * buffer is free the frame is dropped, so recording never holds up the
+ * pipeline. Counts go to the {@code record} subtable of the pipeline's table:
+ * recorded and dropped.
+ *
+ * <p>Read recordings back with {@link #read}; {@code --replay} accepts them
+ * like a directory of images.
+ */
+public final class FrameRecorder {
+  public static final int kRaw = 0;
+  public static final int kJpeg = 1;
+
+  // "PiVisRec"
+  private static final long kMagic = 0x5069566973526563L;
+  private static final int kVersion = 1;
+  private static final int kHeaderBytes = 64;
+  /** Bytes at the start of each slot before the image. */
+  public static final int kSlotHeaderBytes = 96;
+
+  private static final int kBuffers = 3;
+  private static final int kFillChunkBytes = 1024 * 1024;
+  private static final long kForcePeriodNanos = 1_000_000_000L;
+
+  /**
+   * One frame and what the pipeline published for it.
+   */
+  public static final class Record {
+    long sequence;
+    long captureTime;
+    final Mat image = new Mat();
+    int count;
+    double centerX;
+    double centerY;
+    double angleX;
+    double angleY;
+    boolean hasPose;
+    double distance;
+    double yaw;
+  }
+
+  private final int m_format;
+  private final int m_every;
+  private final int m_slotBytes;
+  private final int m_slotCount;
+  private final Path m_path;
+  // Set by the writer thread once the file is filled
+  private volatile MappedByteBuffer m_map;
+
+  private final BlockingQueue<Record> m_free = new ArrayBlockingQueue<>(kBuffers);
+  private final BlockingQueue<Record> m_pending = new ArrayBlockingQueue<>(kBuffers);
+  private int m_offered;
+
+  // Writer thread state
+  private long m_sequence;
+  private final MatOfByte m_encoded = new MatOfByte();
+  private final MatOfInt m_encodeParams;
+  private final byte[] m_bytes;
+  private long m_lastForce = System.nanoTime();
+
+  private volatile long m_recorded;
+  private final AtomicLong m_dropped = new AtomicLong();
+  private final NetworkTableEntry m_recordedEntry;
+  private final NetworkTableEntry m_droppedEntry;
+
+  private final Thread m_thread;
+
+  /**
+   * Create the ring file and start the writer thread.
+   * @param file the file to record to; an existing recording is renamed to {@code <file>.prev}
+   * @param sizeBytes the size of the file, at most 2 GB
+   * @param imageBytes the room for one image, e.g. width * height * 3 for raw frames; JPEGs that do not fit
+   *     are dropped
+   * @param format {@link #kRaw} or {@link #kJpeg}
+   * @param jpegQuality the JPEG quality, 0-100
+   * @param every record one frame out of this many
+   * @param table the pipeline's table to publish counts under, or null
+   * @throws IOException if the file could not be created; filling it is reported by the writer thread
+   */
+  public FrameRecorder(String file, long sizeBytes, int imageBytes, int format, int jpegQuality, int every,
+      NetworkTable table) throws IOException {
+    m_format = format;
+    m_every = Math.max(1, every);
+    m_slotBytes = kSlotHeaderBytes + imageBytes;
+    long size = Math.min(sizeBytes, Integer.MAX_VALUE);
+    m_slotCount = (int) ((size - kHeaderBytes) / m_slotBytes);
+    if (m_slotCount < 1) {
+      throw new IOException("'" + file + "' is too small for one frame of " + imageBytes + " bytes");
+    }
+
+    m_path = Paths.get(file);
+    if (isRecording(file)) {
+      Files.move(m_path, Paths.get(file + ".prev"), StandardCopyOption.REPLACE_EXISTING);
+    }
+    // Fails here if the directory is missing or read-only
+    Files.newByteChannel(m_path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING).close();
+
+    m_encodeParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, jpegQuality);
+    m_bytes = new byte[imageBytes];
+    for (int i = 0; i < kBuffers; i++) {
+      m_free.add(new Record());
+    }
+
+    if (table != null) {
+      NetworkTable record = table.getSubTable("record");
+      m_recordedEntry = record.getEntry("recorded");
+      m_droppedEntry = record.getEntry("dropped");
+    } else {
+      m_recordedEntry = null;
+      m_droppedEntry = null;
+    }
+
+    m_thread = new Thread(this::writeLoop, "Recorder " + m_path.getFileName());
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+   * Offer a published frame. Copies the image if this frame is due and a buffer is free.
+   * Must only be called from the thread that publishes results.
+   * @param image the resized camera image
+   * @param targets the ranked targets, with the best target's angles set by the publish step
+   * @param captureTime the frame's capture time in NT/cscore microseconds, or 0 if unknown
+   */
+  public void offer(Mat image, TargetRanker.Targets targets, long captureTime) {
+    if (m_offered++ % m_every != 0) {
+      return;
+    }
+    Record record = m_free.poll();
+    if (record == null) {
+      m_dropped.incrementAndGet();
+      return;
+    }
+
+    image.copyTo(record.image);
+    record.captureTime = captureTime;
+    record.count = targets.count;
+    int best = targets.best();
+    record.centerX = best >= 0 ? targets.centerX[best] : 0.0;
+    record.centerY = best >= 0 ? targets.centerY[best] : 0.0;
+    record.angleX = targets.angleX;
+    record.angleY = targets.angleY;
+    record.hasPose = targets.hasPose;
+    record.distance = targets.hasPose ? targets.pose[PoseEstimator.kDistance] : 0.0;
+    record.yaw = targets.hasPose ? targets.pose[PoseEstimator.kYaw] : 0.0;
+    m_pending.add(record);
+  }
+
+  /**
+   * Stop the writer thread and flush what was written to the file.
+   * Frames still queued are dropped.
+   */
+  public void close() {
+    m_thread.interrupt();
+    try {
+      m_thread.join(1000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    MappedByteBuffer map = m_map;
+    if (map != null) {
+      map.force();
+    }
+    System.out.println("Recorded " + m_recorded + " frames, dropped " + m_dropped.get());
+  }
+
+  /**
+   * Write the file out in zeros, which marks every slot empty, then map it and write the header.
+   * Frames offered meanwhile are dropped once the buffers are full.
+   */
+  private void fill() throws IOException {
+    long size = kHeaderBytes + (long) m_slotCount * m_slotBytes;
+    ByteBuffer zeros = ByteBuffer.allocateDirect(kFillChunkBytes);
+    try (FileChannel channel = FileChannel.open(m_path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      for (long position = 0; position < size; ) {
+        zeros.clear();
+        zeros.limit((int) Math.min(kFillChunkBytes, size - position));
+        position += channel.write(zeros, position);
+      }
+      channel.force(false);
+      // The mapping stays valid after the file is closed
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      map.putLong(0, kMagic);
+      map.putInt(8, kVersion);
+      map.putInt(12, m_format);
+      map.putInt(16, m_slotBytes);
+      map.putInt(20, m_slotCount);
+      map.putLong(24, 0L);
+      m_map = map;
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      fill();
+    } catch (IOException ex) {
+      System.err.println("could not allocate recording '" + m_path + "', not recording: " + ex);
+      return;
+    }
+    try {
+      for (;;) {
+        Record record = m_pending.take();
+        write(record);
+        m_free.add(record);
+
+        set(m_recordedEntry, m_recorded);
+        set(m_droppedEntry, m_dropped.get());
+        long now = System.nanoTime();
+        if (now - m_lastForce >= kForcePeriodNanos) {
+          m_map.force();
+          m_lastForce = now;
+        }
+      }
+    } catch (InterruptedException ex) {
+      // exit quietly
+    }
+  }
+
+  private void write(Record record) {
+    Mat image = record.image;
+    int length;
+    if (m_format == kJpeg) {
+      Imgcodecs.imencode(".jpg", image, m_encoded, m_encodeParams);
+      length = (int) m_encoded.total();
+      if (length > m_bytes.length) {
+        m_dropped.incrementAndGet();
+        return;
+      }
+      m_encoded.get(0, 0, m_bytes);
+    } else {
+      length = (int) (image.total() * image.elemSize());
+      if (length > m_bytes.length) {
+        m_dropped.incrementAndGet();
+        return;
+      }
+      image.get(0, 0, m_bytes);
+    }
+
+    long sequence = ++m_sequence;
+    int slot = kHeaderBytes + (int) ((sequence - 1) % m_slotCount) * m_slotBytes;
+    // Mark the slot empty while it is rewritten; the sequence goes in last
+    m_map.putLong(slot, 0L);
+    m_map.putLong(slot + 8, record.captureTime);
+    m_map.putInt(slot + 16, image.cols());
+    m_map.putInt(slot + 20, image.rows());
+    m_map.putInt(slot + 24, image.type());
+    m_map.putInt(slot + 28, length);
+    m_map.putInt(slot + 32, record.count);
+    m_map.putInt(slot + 36, record.hasPose ? 1 : 0);
+    m_map.putDouble(slot + 40, record.centerX);
+    m_map.putDouble(slot + 48, record.centerY);
+    m_map.putDouble(slot + 56, record.angleX);
+    m_map.putDouble(slot + 64, record.angleY);
+    m_map.putDouble(slot + 72, record.distance);
+    m_map.putDouble(slot + 80, record.yaw);
+    m_map.position(slot + kSlotHeaderBytes);
+    m_map.put(m_bytes, 0, length);
+    m_map.putLong(slot, sequence);
+    m_map.putLong(24, sequence);
+    m_recorded++;
+  }
+
+  /**
+   * Whether a file starts like a recording.
+   */
+  public static boolean isRecording(String file) {
+    Path path = Paths.get(file);
+    if (!Files.isRegularFile(path)) {
+      return false;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      return raf.length() >= kHeaderBytes && raf.readLong() == kMagic;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  /**
+   * Read every frame in a recording, oldest first.
+   * @param file the recording
+   * @return the recorded frames with their results, empty if the file could not be read
+   */
+  public static List<Record> read(String file) {
+    List<Record> records = new ArrayList<>();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+      MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (map.getLong(0) != kMagic || map.getInt(8) != kVersion) {
+        System.err.println("'" + file + "' is not a recording");
+        return records;
+      }
+      int format = map.getInt(12);
+      int slotBytes = map.getInt(16);
+      int slotCount = map.getInt(20);
+      long last = map.getLong(24);
+
+      // The oldest slot follows the newest once the ring has wrapped
+      long first = Math.max(1, last - slotCount + 1);
+      byte[] bytes = new byte[slotBytes - kSlotHeaderBytes];
+      for (long sequence = first; sequence <= last; sequence++) {
+        int slot = kHeaderBytes + (int) ((sequence - 1) % slotCount) * slotBytes;
+        if (map.getLong(slot) != sequence) {
+          // Being rewritten when the recording stopped
+          continue;
+        }
+        Record record = new Record();
+        record.sequence = sequence;
+        record.captureTime = map.getLong(slot + 8);
+        int width = map.getInt(slot + 16);
+        int height = map.getInt(slot + 20);
+        int type = map.getInt(slot + 24);
+        int length = map.getInt(slot + 28);
+        record.count = map.getInt(slot + 32);
+        record.hasPose = map.getInt(slot + 36) != 0;
+        record.centerX = map.getDouble(slot + 40);
+        record.centerY = map.getDouble(slot + 48);
+        record.angleX = map.getDouble(slot + 56);
+        record.angleY = map.getDouble(slot + 64);
+        record.distance = map.getDouble(slot + 72);
+        record.yaw = map.getDouble(slot + 80);
+
+        map.position(slot + kSlotHeaderBytes);
+        map.get(bytes, 0, length);
+        if (format == kJpeg) {
+          MatOfByte encoded = new MatOfByte();
+          encoded.fromArray(Arrays.copyOf(bytes, length));
+          Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR).copyTo(record.image);
+          encoded.release();
+        } else {
+          record.image.create(height, width, type);
+          record.image.put(0, 0, Arrays.copyOf(bytes, length));
+        }
+        records.add(record);
+      }
+    } catch (IOException ex) {
+      System.err.println("could not read recording '" + file + "': " + ex);
+    }
+    return records;
+  }
+
+  private static void set(NetworkTableEntry entry, long value) {
+    if (entry != null) {
+      entry.setDouble(value);
+    }
+  }
+}
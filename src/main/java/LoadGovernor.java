@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+ * Keeps per-frame latency within a budget by lowering the processing
+ * resolution under sustained overload and raising it again when there is
+ * headroom.
+ *
+ * <p>Resolution moves one step at a time through {@link #kScales}, relative
+ * to the pipeline's base image size. Optionally, the CPU temperature is read
+ * from a sysfs file once a second; while it is at or above the limit the
+ * governor stays at the lowest resolution.
+ */
+public final class LoadGovernor {
+  static final double[] kScales = {1.0, 0.5};
+
+  private static final int kOverloadFrames = 15;
+  private static final int kHeadroomFrames = 60;
+  private static final double kHeadroomFraction = 0.6;
+  private static final double kTemperatureHysteresis = 5.0;
+  private static final long kTemperaturePeriod = 1_000_000_000L;
+
+  private final long m_budgetNanos;
+  private final String m_temperatureFile;
+  private final double m_maxTemperature;
+
+  private volatile int m_level;
+  private int m_overFrames;
+  private int m_underFrames;
+  private double m_temperature = Double.NaN;
+  private boolean m_hot;
+  private long m_nextTemperatureRead;
+  private long m_dropped;
+
+  private NetworkTableEntry m_scaleEntry;
+  private NetworkTableEntry m_droppedEntry;
+  private NetworkTableEntry m_temperatureEntry;
+
+  /**
+   * Create a governor.
+   * @param budgetMs the per-frame latency budget in milliseconds
+   * @param temperatureFile a sysfs file holding the CPU temperature in millidegrees C, or null
+   * @param maxTemperature the temperature in degrees C at which to drop to the lowest resolution
+   * @param perfTable the table to publish the current scale, drops and temperature to, or null
+   */
+  public LoadGovernor(double budgetMs, String temperatureFile, double maxTemperature, NetworkTable perfTable) {
+    m_budgetNanos = (long) (budgetMs * 1e6);
+    m_temperatureFile = temperatureFile;
+    m_maxTemperature = maxTemperature;
+
+    if (perfTable != null) {
+      m_scaleEntry = perfTable.getEntry("scale");
+      m_droppedEntry = perfTable.getEntry("dropped frames");
+      m_temperatureEntry = perfTable.getEntry("temperature");
+      m_scaleEntry.setDouble(scale());
+    }
+  }
+
+  /**
+   * The resolution scale to process the next frame at.
+   */
+  public double scale() {
+    return kScales[m_level];
+  }
+
+  /**
+   * Count frames that were skipped so a newer one could be processed.
+   * May be called from any thread.
+   */
+  public synchronized void framesDropped(int count) {
+    m_dropped += count;
+    if (m_droppedEntry != null) {
+      m_droppedEntry.setDouble(m_dropped);
+    }
+  }
+
+  /**
+   * Record a finished frame's latency and adjust the resolution.
+   * Must only be called from the thread that publishes results.
+   * @param latencyNanos the time from the start of processing to the end of publishing
+   */
+  public void frameDone(long latencyNanos) {
+    long now = System.nanoTime();
+    if (m_temperatureFile != null && now - m_nextTemperatureRead >= 0) {
+      m_nextTemperatureRead = now + kTemperaturePeriod;
+      readTemperature();
+    }
+
+    int level = m_level;
+    if (m_hot) {
+      level = kScales.length - 1;
+      m_overFrames = 0;
+      m_underFrames = 0;
+    } else if (latencyNanos > m_budgetNanos) {
+      m_underFrames = 0;
+      if (++m_overFrames >= kOverloadFrames && level < kScales.length - 1) {
+        level++;
+        m_overFrames = 0;
+      }
+    } else if (latencyNanos < m_budgetNanos * kHeadroomFraction) {
+      m_overFrames = 0;
+      if (++m_underFrames >= kHeadroomFrames && level > 0) {
+        level--;
+        m_underFrames = 0;
+      }
+    } else {
+      m_overFrames = 0;
+      m_underFrames = 0;
+    }
+
+    if (level != m_level) {
+      System.out.println("vision load governor: scale " + kScales[m_level] + " -> " + kScales[level]);
+      m_level = level;
+      if (m_scaleEntry != null) {
+        m_scaleEntry.setDouble(kScales[level]);
+      }
+    }
+  }
+
+  private void readTemperature() {
+    try {
+      String text = new String(Files.readAllBytes(Paths.get(m_temperatureFile)), StandardCharsets.US_ASCII);
+      m_temperature = Double.parseDouble(text.trim()) / 1000.0;
+    } catch (IOException | NumberFormatException ex) {
+      m_temperature = Double.NaN;
+      return;
+    }
+
+    if (m_temperature >= m_maxTemperature) {
+      m_hot = true;
+    } else if (m_temperature < m_maxTemperature - kTemperatureHysteresis) {
+      m_hot = false;
+    }
+    if (m_temperatureEntry != null) {
+      m_temperatureEntry.setDouble(m_temperature);
+    }
+  }
+}
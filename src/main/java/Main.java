@@ -6,39 +6,119 @@
 /*----------------------------------------------------------------------------*/
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 import edu.wpi.cscore.MjpegServer;
 import edu.wpi.cscore.UsbCamera;
+import edu.wpi.cscore.VideoSink;
 import edu.wpi.cscore.VideoSource;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.networktables.*;
 import edu.wpi.first.vision.VisionPipeline;
-import edu.wpi.first.vision.VisionThread;
 
 import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 
 /*
+   Usage: Main [config file] [--replay <image directory or video file> [--fps <rate>] [--loops <count>]]
+          Main --bench [--replay <image directory or video file>]
+          Main --warmup
+          Main --self-test
+          Main --udp-listen <port>
+          Main --calibrate <chessboard image directory or video file>
+               [--board <inner corners, e.g. 9x6>] [--square <square size>] [--out <calibration file>]
+
    JSON format:
    {
        "team": <team number>,
        "ntmode": <"client" or "server", "client" if unspecified>
+       "vision mode": <"serial" or "pipelined", "serial" if unspecified>
+       "vision buffers": <frames in flight for pipelined mode, 4 if unspecified>
+       "bands": <horizontal bands to resize and threshold in parallel, "auto" for one per core,
+                 1 if unspecified>
+       "low latency publish": <true to also publish a packed, flushed result array, false if unspecified>
+       "vision settings": <file to persist NT-tuned vision settings in, "/home/pi/vision-settings.json" if unspecified;
+                           kept in /tmp/<file name> while the rPi is read-only and moved once it is writable>
+       "hot reload": <true to apply changes to this file without a restart, true if unspecified>
+       "load governor": {                           // optional, lowers resolution when frames run late
+           "budget ms": <per-frame latency budget, 33 if unspecified>
+           "temperature file": <sysfs CPU temperature, "/sys/class/thermal/thermal_zone0/temp"
+                                if unspecified, "" to ignore temperature>
+           "max temperature": <degrees C at which to use the lowest resolution, 80 if unspecified>
+       }
+       "detection": <"full" or "coarse to fine", "full" if unspecified>
+       "detector": <"contours" to trace every blob, "components" to trace only blobs whose
+                    connected-component stats can pass the filter, "contours" if unspecified>
+       "target filter": {                           // optional, smoothed and latency-predicted angles
+           "process noise": <how fast the target's angular rate may change, 1000 if unspecified>
+           "measurement noise": <variance of a measured angle in deg^2, 0.1 if unspecified>
+       }
+       "profiles": [                                // optional, pipeline profiles for every vision camera,
+           {                                        // selected with "<table>/profile", the first at startup
+               "name": <profile name>
+               "vision": <false to only stream, e.g. for driving, true if unspecified>
+               "detection": <"full" or "coarse to fine", the top-level "detection" if unspecified>
+               "detector": <"contours" or "components", the top-level "detector" if unspecified>
+               "tracking": <true to search near the last target, true if unspecified>
+               "pose": <true to estimate the target pose, true if unspecified>
+               "settings": {                        // optional, overrides of the built-in vision settings
+                   <setting name, e.g. "HsvThresholdHue">: <number, or [min, max] for ranges>
+               }
+               // if NT value is a string, it's treated as a name
+               // if NT value is a double, it's treated as an integer index
+           }
+       ]
        "cameras": [
            {
                "name": <camera name>
                "path": <path, e.g. "/dev/video0">
+               "vision": <true to run a vision pipeline on this camera>  // optional, true for the first camera only
+               "table": <NT table for this camera's results>          // optional, "Pi Vision" for the first
+                                                                       // vision camera, else "Pi Vision/<name>"
+               "debug stream": {                        // optional, annotated stream of what vision accepted
+                   "fps": <max stream rate, 10 if unspecified>
+                   "width": <stream width, 160 if unspecified>
+                   "height": <stream height, 120 if unspecified>
+                   "show": <"mask" or "frame", "frame" if unspecified>
+               }
+               "calibration": <lens calibration file from --calibrate>  // optional, angles from the
+                                                                       // field of view if unspecified
+               "udp": {                                 // optional, each result as a UDP packet, see UdpPublisher
+                   "host": <receiver, the roboRIO at "10.TE.AM.2" if unspecified>
+                   "port": <receiver's UDP port, 5800 if unspecified>
+               }
+               "record": {                              // optional, ring file of frames and results
+                   "file": <file to record to, "/home/pi/<camera name>.rec" if unspecified, or
+                            "/tmp/<camera name>.rec" if the rPi is read-only; the file's filesystem must be
+                            writable, and /tmp is in RAM and cleared on reboot>
+                   "size mb": <size of the ring file, 256 if unspecified, 64 in /tmp>
+                   "format": <"jpeg" or "raw", "jpeg" if unspecified>
+                   "quality": <JPEG quality, 80 if unspecified>
+                   "every": <record one frame out of this many, 1 if unspecified>
+                   "slot kb": <room for one frame, larger JPEGs are dropped, 37.5 for "jpeg" and
+                               225 for "raw" if unspecified>
+               }
                "pixel format": <"MJPEG", "YUYV", etc>   // optional
                "width": <video mode width>              // optional
                "height": <video mode height>            // optional
@@ -74,7 +154,11 @@ import org.opencv.imgproc.Moments;
  */
 
 public final class Main {
-  private static String configFile = "/boot/frc.json";
+  static String configFile = "/boot/frc.json";
+
+  // Synthetic frames each vision pipeline processes before its camera starts
+  private static final int kWarmUpFrames = 16;
+  private static final long kWarmUpTimeoutMs = 5000;
 
   @SuppressWarnings("MemberName")
   public static class CameraConfig {
@@ -82,6 +166,24 @@ public final class Main {
     public String path;
     public JsonObject config;
     public JsonElement streamConfig;
+    public Boolean vision;
+    public String table;
+    public JsonObject debugStream;
+    public String calibration;
+    public JsonObject record;
+    public JsonObject udp;
+  }
+
+  @SuppressWarnings("MemberName")
+  public static class ProfileConfig {
+    public String name;
+    public JsonObject config;
+    public boolean vision = true;
+    public Boolean coarseToFine;
+    public Boolean componentDetection;
+    public boolean tracking = true;
+    public boolean pose = true;
+    public VisionSettings settings;
   }
 
   @SuppressWarnings("MemberName")
@@ -90,11 +192,52 @@ public final class Main {
     public String key;
   };
 
-  public static int team;
-  public static boolean server;
-  public static List<CameraConfig> cameraConfigs = new ArrayList<>();
-  public static List<SwitchedCameraConfig> switchedCameraConfigs = new ArrayList<>();
-  public static List<VideoSource> cameras = new ArrayList<>();
+  /**
+   * The whole config file. Parsed into a new instance and swapped in only once
+   * it has been read completely, so a key removed from the file goes back to
+   * its default and a file that fails to parse changes nothing.
+   */
+  @SuppressWarnings("MemberName")
+  public static class Config {
+    public JsonObject json;
+    public int team;
+    public boolean server;
+    public boolean pipelined;
+    public int visionBuffers = 4;
+    // 0 for one band per core
+    public int bands = 1;
+    public boolean lowLatencyPublish;
+    public String visionSettingsFile = "/home/pi/vision-settings.json";
+    public boolean hotReload = true;
+    public JsonObject loadGovernor;
+    public JsonObject targetFilter;
+    public boolean coarseToFine;
+    public boolean componentDetection;
+    public List<CameraConfig> cameras = new ArrayList<>();
+    public List<SwitchedCameraConfig> switchedCameras = new ArrayList<>();
+    public List<ProfileConfig> profiles = new ArrayList<>();
+  }
+
+  /**
+   * A vision camera's pipelines and outputs, built before its camera is attached.
+   */
+  @SuppressWarnings("MemberName")
+  static class PreparedVision {
+    NetworkTable table;
+    ProfileSelector selector;
+    MyPipeline[] pipelines;
+    DebugStream debugStream;
+    FrameRecorder recorder;
+    UdpPublisher udpPublisher;
+  }
+
+  // Replaced as a whole when the config file is reloaded
+  public static volatile Config config = new Config();
+  public static volatile List<VideoSource> cameras = new ArrayList<>();
+
+  private static VisionWorkerPool visionPool;
+  private static final Map<String, Runnable> visionStops = new HashMap<>();
+  private static final Map<String, Integer> switchedCameraListeners = new HashMap<>();
 
   private Main() {
   }
@@ -109,7 +252,7 @@ public final class Main {
   /**
    * Read single camera configuration.
    */
-  public static boolean readCameraConfig(JsonObject config) {
+  public static boolean readCameraConfig(Config top, JsonObject config) {
     CameraConfig cam = new CameraConfig();
 
     // name
@@ -131,16 +274,113 @@ public final class Main {
     // stream properties
     cam.streamConfig = config.get("stream");
 
+    // vision pipeline (optional)
+    if (config.has("vision")) {
+      cam.vision = config.get("vision").getAsBoolean();
+    }
+    if (config.has("table")) {
+      cam.table = config.get("table").getAsString();
+    }
+    if (config.has("debug stream")) {
+      cam.debugStream = config.get("debug stream").getAsJsonObject();
+    }
+    if (config.has("calibration")) {
+      cam.calibration = config.get("calibration").getAsString();
+    }
+    if (config.has("record")) {
+      cam.record = config.get("record").getAsJsonObject();
+    }
+    if (config.has("udp")) {
+      cam.udp = config.get("udp").getAsJsonObject();
+    }
+
     cam.config = config;
 
-    cameraConfigs.add(cam);
+    top.cameras.add(cam);
+    return true;
+  }
+
+  /**
+   * Read single pipeline profile configuration.
+   */
+  public static boolean readProfileConfig(Config top, JsonObject config) {
+    ProfileConfig profile = new ProfileConfig();
+
+    // name
+    JsonElement nameElement = config.get("name");
+    if (nameElement == null) {
+      parseError("could not read profile name");
+      return false;
+    }
+    profile.name = nameElement.getAsString();
+
+    // stages (optional)
+    if (config.has("vision")) {
+      profile.vision = config.get("vision").getAsBoolean();
+    }
+    if (config.has("detection")) {
+      String str = config.get("detection").getAsString();
+      if ("full".equalsIgnoreCase(str)) {
+        profile.coarseToFine = false;
+      } else if ("coarse to fine".equalsIgnoreCase(str)) {
+        profile.coarseToFine = true;
+      } else {
+        parseError("profile '" + profile.name + "': could not understand detection value '" + str + "'");
+      }
+    }
+    if (config.has("detector")) {
+      String str = config.get("detector").getAsString();
+      if ("contours".equalsIgnoreCase(str)) {
+        profile.componentDetection = false;
+      } else if ("components".equalsIgnoreCase(str)) {
+        profile.componentDetection = true;
+      } else {
+        parseError("profile '" + profile.name + "': could not understand detector value '" + str + "'");
+      }
+    }
+    if (config.has("tracking")) {
+      profile.tracking = config.get("tracking").getAsBoolean();
+    }
+    if (config.has("pose")) {
+      profile.pose = config.get("pose").getAsBoolean();
+    }
+
+    // vision settings (optional)
+    VisionSettings settings = VisionSettings.defaults();
+    if (config.has("settings")) {
+      for (Map.Entry<String, JsonElement> setting : config.get("settings").getAsJsonObject().entrySet()) {
+        String key = setting.getKey();
+        JsonElement value = setting.getValue();
+        double[] values;
+        if (value.isJsonArray()) {
+          JsonArray array = value.getAsJsonArray();
+          values = new double[array.size()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = array.get(i).getAsDouble();
+          }
+        } else {
+          values = new double[] {value.getAsDouble()};
+        }
+        double[] current = settings.get(key);
+        if (current == null || current.length != values.length) {
+          parseError("profile '" + profile.name + "': unknown setting '" + key + "' or wrong number of values");
+          continue;
+        }
+        settings = settings.with(key, values);
+      }
+    }
+    profile.settings = settings;
+
+    profile.config = config;
+
+    top.profiles.add(profile);
     return true;
   }
 
   /**
    * Read single switched camera configuration.
    */
-  public static boolean readSwitchedCameraConfig(JsonObject config) {
+  public static boolean readSwitchedCameraConfig(Config top, JsonObject config) {
     SwitchedCameraConfig cam = new SwitchedCameraConfig();
 
     // name
@@ -159,74 +399,204 @@ public final class Main {
     }
     cam.key = keyElement.getAsString();
 
-    switchedCameraConfigs.add(cam);
+    top.switchedCameras.add(cam);
     return true;
   }
 
   /**
    * Read configuration file.
+   * @return the config, or null if the file could not be read
    */
-  @SuppressWarnings("PMD.CyclomaticComplexity")
-  public static boolean readConfig() {
+  public static Config readConfig() {
     // parse file
-    JsonElement top;
+    JsonElement root;
     try {
-      top = new JsonParser().parse(Files.newBufferedReader(Paths.get(configFile)));
+      root = new JsonParser().parse(Files.newBufferedReader(Paths.get(configFile)));
     } catch (IOException ex) {
       System.err.println("could not open '" + configFile + "': " + ex);
-      return false;
+      return null;
+    } catch (JsonParseException ex) {
+      parseError("not valid JSON: " + ex.getMessage());
+      return null;
     }
 
     // top level must be an object
-    if (!top.isJsonObject()) {
+    if (!root.isJsonObject()) {
       parseError("must be JSON object");
-      return false;
+      return null;
     }
-    JsonObject obj = top.getAsJsonObject();
+    try {
+      return readConfig(root.getAsJsonObject());
+    } catch (IllegalStateException | UnsupportedOperationException | NumberFormatException ex) {
+      parseError("wrong type of value: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  @SuppressWarnings("PMD.CyclomaticComplexity")
+  private static Config readConfig(JsonObject obj) {
+    Config top = new Config();
+    top.json = obj;
 
     // team number
     JsonElement teamElement = obj.get("team");
     if (teamElement == null) {
       parseError("could not read team number");
-      return false;
+      return null;
     }
-    team = teamElement.getAsInt();
+    top.team = teamElement.getAsInt();
 
     // ntmode (optional)
     if (obj.has("ntmode")) {
       String str = obj.get("ntmode").getAsString();
       if ("client".equalsIgnoreCase(str)) {
-        server = false;
+        top.server = false;
       } else if ("server".equalsIgnoreCase(str)) {
-        server = true;
+        top.server = true;
       } else {
         parseError("could not understand ntmode value '" + str + "'");
       }
     }
 
+    // vision mode (optional)
+    if (obj.has("vision mode")) {
+      String str = obj.get("vision mode").getAsString();
+      if ("serial".equalsIgnoreCase(str)) {
+        top.pipelined = false;
+      } else if ("pipelined".equalsIgnoreCase(str)) {
+        top.pipelined = true;
+      } else {
+        parseError("could not understand vision mode value '" + str + "'");
+      }
+    }
+
+    // vision buffers (optional)
+    if (obj.has("vision buffers")) {
+      int buffers = obj.get("vision buffers").getAsInt();
+      if (buffers < 1) {
+        parseError("vision buffers must be at least 1");
+      } else {
+        top.visionBuffers = buffers;
+      }
+    }
+
+    // bands (optional)
+    if (obj.has("bands")) {
+      JsonElement bandsElement = obj.get("bands");
+      if (bandsElement.isJsonPrimitive() && "auto".equalsIgnoreCase(bandsElement.getAsString())) {
+        top.bands = 0;
+      } else if (bandsElement.getAsInt() < 1) {
+        parseError("bands must be at least 1 or \"auto\"");
+      } else {
+        top.bands = bandsElement.getAsInt();
+      }
+    }
+
+    // low latency publish (optional)
+    if (obj.has("low latency publish")) {
+      top.lowLatencyPublish = obj.get("low latency publish").getAsBoolean();
+    }
+
+    // vision settings file (optional)
+    if (obj.has("vision settings")) {
+      top.visionSettingsFile = obj.get("vision settings").getAsString();
+    }
+
+    // hot reload (optional)
+    if (obj.has("hot reload")) {
+      top.hotReload = obj.get("hot reload").getAsBoolean();
+    }
+
+    // load governor (optional)
+    if (obj.has("load governor")) {
+      top.loadGovernor = obj.get("load governor").getAsJsonObject();
+    }
+
+    // detection (optional)
+    if (obj.has("detection")) {
+      String str = obj.get("detection").getAsString();
+      if ("full".equalsIgnoreCase(str)) {
+        top.coarseToFine = false;
+      } else if ("coarse to fine".equalsIgnoreCase(str)) {
+        top.coarseToFine = true;
+      } else {
+        parseError("could not understand detection value '" + str + "'");
+      }
+    }
+
+    // detector (optional)
+    if (obj.has("detector")) {
+      String str = obj.get("detector").getAsString();
+      if ("contours".equalsIgnoreCase(str)) {
+        top.componentDetection = false;
+      } else if ("components".equalsIgnoreCase(str)) {
+        top.componentDetection = true;
+      } else {
+        parseError("could not understand detector value '" + str + "'");
+      }
+    }
+
+    // target filter (optional)
+    if (obj.has("target filter")) {
+      top.targetFilter = obj.get("target filter").getAsJsonObject();
+    }
+
+    // pipeline profiles (optional)
+    if (obj.has("profiles")) {
+      JsonArray profiles = obj.get("profiles").getAsJsonArray();
+      for (JsonElement profile : profiles) {
+        if (!readProfileConfig(top, profile.getAsJsonObject())) {
+          return null;
+        }
+      }
+      for (int i = 0; i < top.profiles.size(); i++) {
+        for (int j = 0; j < i; j++) {
+          if (top.profiles.get(i).name.equals(top.profiles.get(j).name)) {
+            parseError("duplicate profile name '" + top.profiles.get(i).name + "'");
+            return null;
+          }
+        }
+      }
+    }
+
     // cameras
     JsonElement camerasElement = obj.get("cameras");
     if (camerasElement == null) {
       parseError("could not read cameras");
-      return false;
+      return null;
     }
     JsonArray cameras = camerasElement.getAsJsonArray();
     for (JsonElement camera : cameras) {
-      if (!readCameraConfig(camera.getAsJsonObject())) {
-        return false;
+      if (!readCameraConfig(top, camera.getAsJsonObject())) {
+        return null;
+      }
+    }
+
+    // vision defaults: first camera only, publishing to "Pi Vision"
+    boolean firstVision = true;
+    for (int i = 0; i < top.cameras.size(); i++) {
+      CameraConfig cam = top.cameras.get(i);
+      if (cam.vision == null) {
+        cam.vision = (i == 0);
+      }
+      if (cam.vision) {
+        if (cam.table == null) {
+          cam.table = firstVision ? "Pi Vision" : "Pi Vision/" + cam.name;
+        }
+        firstVision = false;
       }
     }
 
     if (obj.has("switched cameras")) {
       JsonArray switchedCameras = obj.get("switched cameras").getAsJsonArray();
       for (JsonElement camera : switchedCameras) {
-        if (!readSwitchedCameraConfig(camera.getAsJsonObject())) {
-          return false;
+        if (!readSwitchedCameraConfig(top, camera.getAsJsonObject())) {
+          return null;
         }
       }
     }
 
-    return true;
+    return top;
   }
 
   /**
@@ -250,6 +620,297 @@ public final class Main {
     return camera;
   }
 
+  /**
+   * Stop a camera started with startCamera and remove its stream.
+   */
+  public static void stopCamera(String name, VideoSource camera) {
+    System.out.println("Stopping camera '" + name + "'");
+    CameraServer inst = CameraServer.getInstance();
+    VideoSink server = inst.getServer("serve_" + name);
+    inst.removeServer("serve_" + name);
+    if (server != null) {
+      server.close();
+    }
+    inst.removeCamera(name);
+    camera.close();
+  }
+
+  /**
+   * Start running the vision pipeline for a camera, if its config asks for one.
+   * Each pipeline profile gets its own pipeline, warmed up before this returns.
+   * Pipelined mode applies to the first vision camera; the rest share a worker pool.
+   */
+  public static void startVision(CameraConfig config, VideoSource camera) {
+    PreparedVision vision = prepareVision(config);
+    if (vision != null) {
+      startVision(config, camera, vision);
+    }
+  }
+
+  /**
+   * Build a vision camera's pipelines, one per profile, and warm them up, without its camera,
+   * so it can be done while the camera opens.
+   * @return the pipelines and their outputs, or null if the config does not ask for vision
+   */
+  static PreparedVision prepareVision(CameraConfig config) {
+    if (!config.vision) {
+      return null;
+    }
+    Config top = Main.config;
+
+    NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
+    NetworkTable table = ntinst.getTable(config.table);
+
+    CameraCalibration calibration = null;
+    if (config.calibration != null) {
+      calibration = CameraCalibration.load(config.calibration);
+      if (calibration != null) {
+        System.out.println("Using lens calibration '" + config.calibration + "' for '" + config.name + "'");
+      }
+    }
+
+    DebugStream debugStream = null;
+    if (config.debugStream != null) {
+      JsonObject debug = config.debugStream;
+      double fps = debug.has("fps") ? debug.get("fps").getAsDouble() : 10.0;
+      int width = debug.has("width") ? debug.get("width").getAsInt() : 160;
+      int height = debug.has("height") ? debug.get("height").getAsInt() : 120;
+      boolean showMask = debug.has("show") && "mask".equalsIgnoreCase(debug.get("show").getAsString());
+      System.out.println("Starting debug stream for '" + config.name + "' at " + width + "x" + height
+          + ", " + fps + " fps");
+      debugStream = new DebugStream(config.name + " debug", fps, width, height, showMask);
+    }
+
+    FrameRecorder recorder = null;
+    if (config.record != null) {
+      JsonObject record = config.record;
+      // the SD card unless the rPi is read-only, else RAM-backed /tmp, which a reboot clears
+      boolean onCard = !ReadOnlyMounts.isReadOnly(Paths.get("/home/pi"));
+      String file = record.has("file") ? record.get("file").getAsString()
+          : (onCard ? "/home/pi/" : "/tmp/") + config.name + ".rec";
+      if (!record.has("file") && !onCard) {
+        System.err.println("recording '" + config.name + "' to " + file + " as /home/pi is read-only;"
+            + " make the rPi writable to keep recordings across a reboot");
+      }
+      double sizeMb = record.has("size mb") ? record.get("size mb").getAsDouble() : onCard ? 256.0 : 64.0;
+      boolean raw = record.has("format") && "raw".equalsIgnoreCase(record.get("format").getAsString());
+      int quality = record.has("quality") ? record.get("quality").getAsInt() : 80;
+      int every = record.has("every") ? record.get("every").getAsInt() : 1;
+      // raw slots hold a full-size frame; a JPEG of one at quality 80 is usually 10-20 KB,
+      // so the default JPEG slot is a sixth of that, about twice a typical frame
+      int rawBytes = (int) (MyPipeline.VisionConstants.ImageWidth * MyPipeline.VisionConstants.ImageHeight) * 3;
+      int slotBytes = record.has("slot kb") ? (int) (record.get("slot kb").getAsDouble() * 1024)
+          : raw ? rawBytes : rawBytes / 6;
+      try {
+        recorder = new FrameRecorder(file, (long) (sizeMb * 1024 * 1024), slotBytes,
+            raw ? FrameRecorder.kRaw : FrameRecorder.kJpeg, quality, every, table);
+        System.out.println("Recording '" + config.name + "' to " + file);
+      } catch (IOException ex) {
+        System.err.println("could not start recording '" + config.name + "' to '" + file + "': " + ex);
+      }
+    }
+
+    UdpPublisher udpPublisher = null;
+    if (config.udp != null) {
+      JsonObject udp = config.udp;
+      String host = udp.has("host") ? udp.get("host").getAsString()
+          : "10." + top.team / 100 + "." + top.team % 100 + ".2";
+      int port = udp.has("port") ? udp.get("port").getAsInt() : 5800;
+      try {
+        udpPublisher = new UdpPublisher(host, port, table);
+        System.out.println("Sending '" + config.name + "' results to " + host + ":" + port + " over UDP");
+      } catch (IOException ex) {
+        System.err.println("could not start udp results for '" + config.name + "': " + ex);
+      }
+    }
+
+    // one governor per camera, so the resolution carries over when the profile changes
+    LoadGovernor visionGovernor = null;
+    if (top.loadGovernor != null) {
+      JsonObject governor = top.loadGovernor;
+      double budgetMs = governor.has("budget ms") ? governor.get("budget ms").getAsDouble() : 33.0;
+      String temperatureFile = governor.has("temperature file")
+          ? governor.get("temperature file").getAsString() : "/sys/class/thermal/thermal_zone0/temp";
+      double maxTemperature = governor.has("max temperature") ? governor.get("max temperature").getAsDouble() : 80.0;
+      visionGovernor = new LoadGovernor(budgetMs, temperatureFile.isEmpty() ? null : temperatureFile,
+          maxTemperature, ntinst.getTable(config.table + "/perf"));
+    }
+
+    // one result sequence per camera, as the profiles all publish to the same entry
+    MyPipeline.ResultSequence resultSequence = top.lowLatencyPublish ? new MyPipeline.ResultSequence() : null;
+
+    // one pipeline per profile, all built and warmed up now so switching never stalls a frame
+    List<ProfileConfig> profiles = top.profiles;
+    int profileCount = Math.max(1, profiles.size());
+    String[] profileNames = new String[profileCount];
+    MyPipeline[] pipelines = new MyPipeline[profileCount];
+    List<Mat> warmUpFrames = StageBenchmark.syntheticFrames(kWarmUpFrames, new Random(2020));
+    List<CompletableFuture<Void>> warming = new ArrayList<>();
+    for (int i = 0; i < profileCount; i++) {
+      ProfileConfig profile = profiles.isEmpty() ? null : profiles.get(i);
+      MyPipeline visionPipeline = new MyPipeline(table);
+      visionPipeline.setLowLatencyPublish(resultSequence);
+      visionPipeline.setCoarseToFine(top.coarseToFine);
+      visionPipeline.setComponentDetection(top.componentDetection);
+      visionPipeline.setBands(top.bands > 0 ? top.bands : BandProcessor.autoBands());
+      if (profile != null) {
+        if (profile.coarseToFine != null) {
+          visionPipeline.setCoarseToFine(profile.coarseToFine);
+        }
+        if (profile.componentDetection != null) {
+          visionPipeline.setComponentDetection(profile.componentDetection);
+        }
+        visionPipeline.setVisionEnabled(profile.vision);
+        visionPipeline.setTracking(profile.tracking);
+        visionPipeline.setPoseEnabled(profile.pose);
+        visionPipeline.setSettings(profile.settings);
+      }
+      visionPipeline.enableTuning(top.visionSettingsFile, profile != null ? profile.name : null);
+      if (calibration != null) {
+        visionPipeline.setCalibration(i == 0 ? calibration : calibration.copy());
+      }
+      visionPipeline.setDebugStream(debugStream);
+      visionPipeline.setRecorder(recorder);
+      visionPipeline.setUdpPublisher(udpPublisher);
+      visionPipeline.setLoadGovernor(visionGovernor);
+
+      if (top.targetFilter != null) {
+        JsonObject filter = top.targetFilter;
+        double processNoise = filter.has("process noise") ? filter.get("process noise").getAsDouble() : 1000.0;
+        double measurementNoise = filter.has("measurement noise")
+            ? filter.get("measurement noise").getAsDouble() : 0.1;
+        visionPipeline.setTargetFilter(new TargetFilter(processNoise, measurementNoise));
+      }
+
+      if (profile == null || profile.vision) {
+        // each pipeline warms its own buffers, so profiles warm up side by side
+        warming.add(CompletableFuture.runAsync(() -> {
+          visionPipeline.awaitWarm(kWarmUpTimeoutMs);
+          visionPipeline.warmUp(warmUpFrames);
+        }));
+      }
+      profileNames[i] = profile != null ? profile.name : "default";
+      pipelines[i] = visionPipeline;
+    }
+    CompletableFuture.allOf(warming.toArray(new CompletableFuture<?>[0])).join();
+    for (Mat frame : warmUpFrames) {
+      frame.release();
+    }
+    if (!profiles.isEmpty()) {
+      System.out.println("Warmed up " + profileCount + " profiles for '" + config.name + "', select with "
+          + config.table + "/profile");
+    }
+
+    PreparedVision vision = new PreparedVision();
+    vision.table = table;
+    vision.selector = new ProfileSelector(profileNames, pipelines, table);
+    vision.pipelines = pipelines;
+    vision.debugStream = debugStream;
+    vision.recorder = recorder;
+    vision.udpPublisher = udpPublisher;
+    return vision;
+  }
+
+  /**
+   * Start running prepared pipelines on a camera.
+   */
+  static synchronized void startVision(CameraConfig config, VideoSource camera, PreparedVision vision) {
+    Config top = Main.config;
+    NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
+    NetworkTable table = vision.table;
+    ProfileSelector selector = vision.selector;
+    MyPipeline[] pipelines = vision.pipelines;
+    DebugStream startedDebugStream = vision.debugStream;
+    FrameRecorder startedRecorder = vision.recorder;
+    UdpPublisher startedUdpPublisher = vision.udpPublisher;
+    selector.start();
+
+    CameraConfig firstVision = null;
+    for (CameraConfig cam : top.cameras) {
+      if (cam.vision) {
+        firstVision = cam;
+        break;
+      }
+    }
+
+    if (config == firstVision && top.pipelined) {
+      System.out.println("Starting pipelined vision on '" + config.name + "' with "
+          + top.visionBuffers + " buffers, publishing to " + config.table);
+      PipelinedVision runner = new PipelinedVision(camera, selector, top.visionBuffers, table);
+      runner.start();
+      visionStops.put(config.name, () -> {
+        selector.stop();
+        runner.stop();
+        for (MyPipeline visionPipeline : pipelines) {
+          visionPipeline.stopTuning();
+        }
+        if (startedDebugStream != null) {
+          startedDebugStream.stop();
+        }
+        if (startedRecorder != null) {
+          startedRecorder.close();
+        }
+        if (startedUdpPublisher != null) {
+          startedUdpPublisher.close();
+        }
+      });
+    } else {
+      if (visionPool == null) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        visionPool = new VisionWorkerPool(threads, ntinst.getTable("Pi Vision/perf"));
+      }
+      System.out.println("Starting vision on '" + config.name + "', publishing to " + config.table);
+      visionPool.add(config.name, camera, selector, table);
+      visionStops.put(config.name, () -> {
+        selector.stop();
+        visionPool.remove(config.name);
+        for (MyPipeline visionPipeline : pipelines) {
+          visionPipeline.stopTuning();
+          visionPipeline.setDebugStream(null);
+          visionPipeline.setRecorder(null);
+          visionPipeline.setUdpPublisher(null);
+        }
+        if (startedDebugStream != null) {
+          startedDebugStream.stop();
+        }
+        if (startedRecorder != null) {
+          startedRecorder.close();
+        }
+        if (startedUdpPublisher != null) {
+          startedUdpPublisher.close();
+        }
+      });
+    }
+  }
+
+  /**
+   * Stop the vision pipeline for a camera, if one is running.
+   */
+  public static synchronized void stopVision(String name) {
+    Runnable stop = visionStops.remove(name);
+    if (stop != null) {
+      System.out.println("Stopping vision on '" + name + "'");
+      stop.run();
+    }
+  }
+
+  /**
+   * Stop a switched camera started with startSwitchedCamera.
+   */
+  public static void stopSwitchedCamera(SwitchedCameraConfig config) {
+    System.out.println("Stopping switched camera '" + config.name + "'");
+    Integer listener = switchedCameraListeners.remove(config.name);
+    if (listener != null) {
+      NetworkTableInstance.getDefault().removeEntryListener(listener);
+    }
+    CameraServer inst = CameraServer.getInstance();
+    VideoSink server = inst.getServer(config.name);
+    inst.removeServer(config.name);
+    if (server != null) {
+      server.close();
+    }
+  }
+
   /**
    * Start running the switched camera.
    */
@@ -257,9 +918,11 @@ public final class Main {
     System.out.println("Starting switched camera '" + config.name + "' on " + config.key);
     MjpegServer server = CameraServer.getInstance().addSwitchedCamera(config.name);
 
-    NetworkTableInstance.getDefault()
+    int listener = NetworkTableInstance.getDefault()
         .getEntry(config.key)
         .addListener(event -> {
+              List<VideoSource> cameras = Main.cameras;
+              List<CameraConfig> cameraConfigs = Main.config.cameras;
               if (event.value.isDouble()) {
                 int i = (int) event.value.getDouble();
                 if (i >= 0 && i < cameras.size()) {
@@ -276,51 +939,219 @@ public final class Main {
               }
             },
             EntryListenerFlags.kImmediate | EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    switchedCameraListeners.put(config.name, listener);
 
     return server;
   }
 
 
+  /**
+   * Load the OpenCV native library and run the vision code on synthetic frames,
+   * for "--warmup" to time it or to record a class list.
+   * @return how long it took in milliseconds
+   */
+  static long warmUpVision() {
+    long start = System.nanoTime();
+    // Constructing the pipeline loads the OpenCV native library
+    MyPipeline pipeline = new MyPipeline(null);
+    pipeline.awaitWarm(kWarmUpTimeoutMs);
+    List<Mat> frames = StageBenchmark.syntheticFrames(kWarmUpFrames, new Random(2020));
+    pipeline.warmUp(frames);
+    for (Mat frame : frames) {
+      frame.release();
+    }
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+
+  /**
+   * Print each result UdpPublisher sends to a port, e.g. to check the stream over localhost.
+   */
+  static void listenUdp(int port) {
+    UdpResultReceiver receiver = new UdpResultReceiver(port);
+    try {
+      receiver.start();
+    } catch (IOException ex) {
+      System.err.println("could not listen on udp port " + port + ": " + ex);
+      return;
+    }
+    System.out.println("Listening for udp results on port " + port);
+    long lastSequence = 0;
+    for (;;) {
+      UdpResultReceiver.Result result = receiver.latest();
+      if (result != null && result.sequence != lastSequence) {
+        System.out.println(result);
+        lastSequence = result.sequence;
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException ex) {
+        receiver.close();
+        return;
+      }
+    }
+  }
+
   /**
    * Main.
    */
   public static void main(String... args) {
-    if (args.length > 0) {
-      configFile = args[0];
+    String replayPath = null;
+    double replayFps = 0.0;
+    int replayLoops = 1;
+    boolean bench = false;
+    boolean warmup = false;
+    boolean selfTest = false;
+    int udpListenPort = 0;
+    String calibratePath = null;
+    int boardCols = 9;
+    int boardRows = 6;
+    double squareSize = 1.0;
+    String calibrationOut = "calibration.json";
+    for (int i = 0; i < args.length; i++) {
+      if ("--replay".equals(args[i]) && i + 1 < args.length) {
+        replayPath = args[++i];
+      } else if ("--fps".equals(args[i]) && i + 1 < args.length) {
+        replayFps = Double.parseDouble(args[++i]);
+      } else if ("--loops".equals(args[i]) && i + 1 < args.length) {
+        replayLoops = Integer.parseInt(args[++i]);
+      } else if ("--bench".equals(args[i])) {
+        bench = true;
+      } else if ("--warmup".equals(args[i])) {
+        warmup = true;
+      } else if ("--self-test".equals(args[i])) {
+        selfTest = true;
+      } else if ("--udp-listen".equals(args[i]) && i + 1 < args.length) {
+        udpListenPort = Integer.parseInt(args[++i]);
+      } else if ("--calibrate".equals(args[i]) && i + 1 < args.length) {
+        calibratePath = args[++i];
+      } else if ("--board".equals(args[i]) && i + 1 < args.length) {
+        String[] board = args[++i].toLowerCase().split("x");
+        if (board.length != 2) {
+          System.err.println("--board must be <cols>x<rows>, e.g. 9x6");
+          return;
+        }
+        boardCols = Integer.parseInt(board[0]);
+        boardRows = Integer.parseInt(board[1]);
+      } else if ("--square".equals(args[i]) && i + 1 < args.length) {
+        squareSize = Double.parseDouble(args[++i]);
+      } else if ("--out".equals(args[i]) && i + 1 < args.length) {
+        calibrationOut = args[++i];
+      } else if (args[i].startsWith("--")) {
+        System.err.println("unknown or incomplete option '" + args[i] + "'");
+        return;
+      } else {
+        configFile = args[i];
+      }
+    }
+
+    // calibrate the lens from chessboard images
+    if (calibratePath != null) {
+      if (!CameraCalibration.calibrate(calibratePath, boardCols, boardRows, squareSize, calibrationOut)) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    // check what can be checked without cameras, NetworkTables or OpenCV
+    if (selfTest) {
+      if (!SelfTest.run()) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    // benchmark each pipeline stage, adding the replay frames if given
+    if (bench) {
+      if (!StageBenchmark.run(replayPath)) {
+        System.exit(1);
+      }
+      return;
+    }
+
+    // replay recorded frames without cameras or NetworkTables
+    if (replayPath != null) {
+      if (replayLoops < 1) {
+        System.err.println("--loops must be at least 1");
+        return;
+      }
+      if (!(replayFps >= 0.0)) {
+        System.err.println("--fps must be 0 (as fast as possible) or more");
+        return;
+      }
+      ReplayVision.run(replayPath, replayFps, replayLoops);
+      return;
+    }
+
+    // print the results sent with "udp", as the robot would receive them
+    if (udpListenPort != 0) {
+      listenUdp(udpListenPort);
+      return;
+    }
+
+    // time the native library load and warm-up, e.g. to record a CDS class list
+    if (warmup) {
+      System.out.println("Vision warmed up in " + warmUpVision() + " ms");
+      return;
     }
 
     // read configuration
-    if (!readConfig()) {
+    Config top = readConfig();
+    if (top == null) {
       return;
     }
+    config = top;
+
+    // build and warm up each vision camera's pipelines, loading OpenCV on the way,
+    // while NetworkTables and the cameras start
+    long visionStart = System.nanoTime();
+    ExecutorService visionStarter = Executors.newFixedThreadPool(Math.max(1, top.cameras.size()));
+    List<CompletableFuture<PreparedVision>> preparingVision = new ArrayList<>();
+    for (CameraConfig config : top.cameras) {
+      preparingVision.add(CompletableFuture.supplyAsync(() -> prepareVision(config), visionStarter));
+    }
 
     // start NetworkTables
     NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
-    if (server) {
+    if (top.server) {
       System.out.println("Setting up NetworkTables server");
       ntinst.startServer();
     } else {
-      System.out.println("Setting up NetworkTables client for team " + team);
-      ntinst.startClientTeam(team);
+      System.out.println("Setting up NetworkTables client for team " + top.team);
+      ntinst.startClientTeam(top.team);
     }
 
-    // start cameras
-    for (CameraConfig config : cameraConfigs) {
-      cameras.add(startCamera(config));
+    // start cameras, opening them all at once
+    ExecutorService cameraStarter = Executors.newFixedThreadPool(Math.max(1, top.cameras.size()));
+    List<CompletableFuture<VideoSource>> startingCameras = new ArrayList<>();
+    for (CameraConfig config : top.cameras) {
+      startingCameras.add(CompletableFuture.supplyAsync(() -> startCamera(config), cameraStarter));
+    }
+    for (CompletableFuture<VideoSource> camera : startingCameras) {
+      cameras.add(camera.join());
     }
+    cameraStarter.shutdown();
 
     // start switched cameras
-    for (SwitchedCameraConfig config : switchedCameraConfigs) {
+    for (SwitchedCameraConfig config : top.switchedCameras) {
       startSwitchedCamera(config);
     }
 
-    // start image processing on camera 0 if present
-    if (cameras.size() >= 1) {
-      VisionThread visionThread = new VisionThread(cameras.get(0),
-              new MyPipeline(), pipeline -> {
-        // do something with pipeline results
-      });
-      visionThread.start();
+    // start image processing on each vision camera
+    List<PreparedVision> prepared = new ArrayList<>();
+    for (CompletableFuture<PreparedVision> vision : preparingVision) {
+      prepared.add(vision.join());
+    }
+    visionStarter.shutdown();
+    System.out.println("Vision warmed up in " + (System.nanoTime() - visionStart) / 1_000_000 + " ms");
+    for (int i = 0; i < top.cameras.size(); i++) {
+      if (prepared.get(i) != null) {
+        startVision(top.cameras.get(i), cameras.get(i), prepared.get(i));
+      }
+    }
+
+    // apply later config file changes without restarting
+    if (top.hotReload) {
+      new ConfigReloader(configFile).start();
     }
 
     // loop forever
@@ -345,53 +1176,187 @@ public final class Main {
     private static class VisionConstants {
       private static final double ImageWidth = 320.0;
       private static final double ImageHeight = 240.0;
-  
-      private static final double[] HsvThresholdHue = {58.0, 129.0};
-      private static final double[] HsvThresholdSaturation = {80.0, 240.0};
-      private static final double[] HsvThresholdValue = {98.0, 255.0};
-  
-      private static final double FilterContoursMinArea = 20.0;
-      private static final double FilterContoursMinPerimeter = 20.0;
-      private static final double FilterContoursMinWidth = 20.0;
-      private static final double FilterContoursMinHeight = 20.0;
-      private static final double[] FilterContoursSolidity = {0, 60.0};
-      private static final double FilterContoursMinVertices = 0.0;
-      private static final double FilterContoursMinRatio = 0.0;
-
-      private static final double HoriFOV = 50.0; // Horizontal Field of View in degrees
-      private static final double VertFOV = 40.0; // Vertical Field of View in degrees
-      private static final double ViewPlaneHeight = 2.0 * Math.tan(Math.toRadians(VertFOV) / 2.0);
-      private static final double ViewPlaneWidth = 2.0 * Math.tan(Math.toRadians(HoriFOV) / 2.0);
+
+      // Thresholds, filter limits and FOV are tunable at runtime, see VisionSettings
+
+      private static final int CoarseFactor = 4; // Coarse-to-fine: candidate search at 1/CoarseFactor resolution
+      private static final int CoarsePadding = 8; // Coarse-to-fine: full-resolution pixels added around each candidate
+
+      private static final boolean PoseEnabled = true; // Solve the camera pose from the best target's corners
+      private static final boolean TrackingEnabled = true; // Search near the last target when possible
+      private static final int TrackingPadding = 40; // Pixels added around the last target's bounding box
+      private static final int TrackingRefreshFrames = 30; // Full-frame search at least this often
+
+      private static final long MinFlushPeriod = 10_000_000L; // Minimum nanoseconds between low-latency NT flushes
+
+      private static final int MaxTargets = 3; // Ranked targets published in the packed targets array
     }
     
-    //Outputs
-    private Mat m_resizeImageOutput = new Mat();  
+    //Tunable settings, swapped as a whole between frames
+    private volatile VisionSettings m_settings = VisionSettings.defaults();
+    private VisionTuner m_tuner;
+
+    //Annotated debug output, null when not configured
+    private volatile DebugStream m_debugStream;
+
+    //Frame and result recording for post-match replay, null when not configured
+    private volatile FrameRecorder m_recorder;
+
+    //Results sent to the robot over UDP, null when not configured; used by the publish step only
+    private volatile UdpPublisher m_udpPublisher;
+
+    //Resolution governor, null to always process at the full ImageWidth x ImageHeight
+    private volatile LoadGovernor m_governor;
+
+    //Angle smoothing and prediction, null when disabled; used by the publish step only
+    private volatile TargetFilter m_targetFilter;
+
+    //Lens calibration, null to use the field of view; the pose step gets its own copy
+    private volatile CameraCalibration m_calibration;
+    private volatile CameraCalibration m_poseCalibration;
+    private final double[] m_normalized = new double[2];
+    private final double[] m_angles = new double[2];
+
+    //Outputs
+    private Mat m_resizeImageOutput = new Mat();  
     private Mat m_hsvThresholdOutput = new Mat();
     private ArrayList<MatOfPoint> m_findContoursOutput = new ArrayList<MatOfPoint>();
     private ArrayList<MatOfPoint> m_filterContoursOutput = new ArrayList<MatOfPoint>();
+    private final Rect m_searchArea = new Rect();
+    private final Rect m_thresholdArea = new Rect();
+
+    //Reusable scratch buffers for Find_Contours
+    private final Mat m_hierarchy = new Mat();
+    private final Point m_contourOffset = new Point();
+
+    //Reusable scratch buffers for Filter_Contours
+    private final MatOfInt m_hull = new MatOfInt();
+    private int[] m_contourPoints = new int[256];
+    private int[] m_hullIndices = new int[64];
+    //Solidity and width/height ratio of each contour that passed, for ranking
+    private double[] m_filterSolidity = new double[16];
+    private double[] m_filterRatio = new double[16];
+
+    //Target ranking, keeping the last best target between frames
+    private final TargetRanker m_ranker = new TargetRanker();
+    private final TargetRanker.Targets m_targets = new TargetRanker.Targets();
+    private final double[][] m_topTargets = new double[VisionConstants.MaxTargets + 1][];
+
+    //Pose estimation of the best target, null when disabled
+    private final PoseEstimator m_poseEstimator = VisionConstants.PoseEnabled ? new PoseEstimator() : null;
+    private volatile boolean m_poseEnabled = VisionConstants.PoseEnabled;
+    private final double[] m_translation = new double[3];
+
+    //Precomputed BGR->mask table for HSV_Threshold
+    private final ThresholdTable m_thresholdTable = new ThresholdTable();
+    private final ThresholdTable.Buffers m_thresholdBuffers = new ThresholdTable.Buffers();
+    private final Mat m_searchAreaMask = new Mat();
+
+    //Coarse-to-fine candidate search, used by preprocess only
+    private volatile boolean m_coarseToFine;
+    private final Mat m_coarseImage = new Mat();
+    private final Mat m_coarseMask = new Mat();
+    private final Mat m_coarseHierarchy = new Mat();
+    private final Size m_coarseSize = new Size();
+    private final Rect m_coarseArea = new Rect();
+    private final ArrayList<MatOfPoint> m_coarseContours = new ArrayList<MatOfPoint>();
+    private final ArrayList<Rect> m_candidates = new ArrayList<Rect>();
+    private static final Scalar kZero = new Scalar(0);
+
+    //Connected-components detection, used by detect only
+    private volatile boolean m_componentDetection;
+    private final Mat m_labels = new Mat();
+    private final Mat m_componentStats = new Mat();
+    private final Mat m_componentCentroids = new Mat();
+    private final Mat m_componentMask = new Mat();
+    private final Mat m_componentHierarchy = new Mat();
+    private final Rect m_componentBox = new Rect();
+    private final Point m_componentOffset = new Point();
+    private final Scalar m_componentLabel = new Scalar(0);
+    private final ArrayList<MatOfPoint> m_componentContours = new ArrayList<MatOfPoint>();
+    private int[] m_componentValues = new int[16 * Imgproc.CC_STAT_MAX];
+
+    //Banded resize and threshold, null to run them as one pass
+    private volatile BandProcessor m_bandProcessor;
+
+    //Region-of-interest tracking, null when disabled
+    private RoiTracker m_tracker;
+
+    //False for a profile that only streams, so frames are not processed
+    private volatile boolean m_visionEnabled = true;
+    //Whether the empty result has been published since this profile was selected
+    private volatile boolean m_noTargetPublished;
+
+    //Per-stage latency statistics
+    private final PipelineStats m_stats;
+
+    //Set once any pipeline has published a target, for the time-to-first-target metric
+    private static final AtomicBoolean s_firstTarget = new AtomicBoolean();
+
+    //Low-latency publish state, shared by the camera's profiles; null when disabled
+    private volatile ResultSequence m_resultSequence;
+    private final double[] m_result = new double[9];
+
+    /**
+     * The packed result's sequence number and last flush time for one camera.
+     * Its profile pipelines all write the same result entry, so the sequence
+     * keeps counting and flushes stay rate-limited when the profile changes.
+     * Used by the publish step only.
+     */
+    static final class ResultSequence {
+      private long m_sequence;
+      private long m_lastFlush;
+    }
 
     private NetworkTable m_ntTable;
-    private static class NTE {
-      public static NetworkTableEntry targetCount;
-      public static NetworkTableEntry centerX;
-      public static NetworkTableEntry centerY;
-      public static NetworkTableEntry offsetX;
-      public static NetworkTableEntry offsetY;
+    private static class Entries {
+      public NetworkTableEntry targetCount;
+      public NetworkTableEntry centerX;
+      public NetworkTableEntry centerY;
+      public NetworkTableEntry offsetX;
+      public NetworkTableEntry offsetY;
       // Limelight-compatible settings
-      public static NetworkTableEntry angleX;
-      public static NetworkTableEntry angleY;
+      public NetworkTableEntry angleX;
+      public NetworkTableEntry angleY;
+      // Packed result for low-latency publish:
+      // {sequence, capture time (us), ct, cx, cy, nx, ny, tx, ty}
+      public NetworkTableEntry result;
+      // Up to MaxTargets ranked targets, best first, each {nx, ny, tx, ty, area, score}
+      public NetworkTableEntry targets;
+      // Target filter: smoothed angles, angles predicted by the latency, angular velocity (deg/s)
+      public NetworkTableEntry filteredX;
+      public NetworkTableEntry filteredY;
+      public NetworkTableEntry predictedX;
+      public NetworkTableEntry predictedY;
+      public NetworkTableEntry velocityX;
+      public NetworkTableEntry velocityY;
+      // Pose of the best target: distance (in), target yaw (deg), target position in the camera frame (in)
+      public NetworkTableEntry distance;
+      public NetworkTableEntry yaw;
+      public NetworkTableEntry translation;
+      // Milliseconds from JVM start to the first published target
+      public NetworkTableEntry firstTarget;
     }
+    // Per-instance so each camera's pipeline publishes to its own table
+    private final Entries NTE = new Entries();
     
     static {
       System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
     }
     
     public MyPipeline() {
-      NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
+      this(NetworkTableInstance.getDefault().getTable("Pi Vision"));
+    }
 
-        if (ntinst != null) {
-          m_ntTable = ntinst.getTable("Pi Vision");
-        }
+    /**
+     * Create a pipeline that publishes to the given table.
+     * @param table the table for results, or null to run without NetworkTables (e.g. replay)
+     */
+    public MyPipeline(NetworkTable table) {
+      setSettings(m_settings);
+
+        m_ntTable = table;
+        m_stats = new PipelineStats(m_ntTable);
 
         if (m_ntTable != null) {
           NTE.targetCount = m_ntTable.getEntry("ct");
@@ -411,50 +1376,575 @@ public final class Main {
           NTE.offsetY.setDefaultDouble(0.0);
           NTE.angleX.setDefaultDouble(0.0);
           NTE.angleY.setDefaultDouble(0.0);
+
+          NTE.result = m_ntTable.getEntry("result");
+          NTE.targets = m_ntTable.getEntry("targets");
+          NTE.filteredX = m_ntTable.getEntry("ftx");
+          NTE.filteredY = m_ntTable.getEntry("fty");
+          NTE.predictedX = m_ntTable.getEntry("ptx");
+          NTE.predictedY = m_ntTable.getEntry("pty");
+          NTE.velocityX = m_ntTable.getEntry("vtx");
+          NTE.velocityY = m_ntTable.getEntry("vty");
+          NTE.distance = m_ntTable.getEntry("distance");
+          NTE.yaw = m_ntTable.getEntry("yaw");
+          NTE.translation = m_ntTable.getEntry("translation");
+          NTE.firstTarget = m_ntTable.getSubTable("perf").getEntry("first target ms");
         }
+
+        for (int i = 0; i < m_topTargets.length; i++) {
+          m_topTargets[i] = new double[i * 6];
+        }
+
+        setTracking(VisionConstants.TrackingEnabled);
     }
 
     @Override
     public void process(Mat source0) {      
+      // No camera frame time here, so stamp with the NT clock as processing starts
+      process(source0, m_resultSequence != null ? NetworkTablesJNI.now() : 0);
+    }
+
+    /**
+     * Process a frame whose capture time is known.
+     * @param source0 The camera frame.
+     * @param captureTime The frame time from CvSink.grabFrame, in NT/cscore microseconds.
+     */
+    public void process(Mat source0, long captureTime) {
+      if (!m_visionEnabled) {
+        if (takeNoTarget()) {
+          publishNoTarget(m_targets, System.nanoTime(), captureTime);
+        }
+        return;
+      }
+      long startTime = System.nanoTime();
+      // One settings snapshot for the whole frame, so a tuning change applies from the next frame on
+      VisionSettings settings = m_settings;
+      preprocess(source0, m_resizeImageOutput, m_hsvThresholdOutput, m_searchArea, m_thresholdArea, settings);
+      detect(m_hsvThresholdOutput, m_searchArea, m_thresholdArea, m_findContoursOutput, m_filterContoursOutput,
+        m_targets, settings);
+
+      // Step Publish Target Info to Network Table
+      TargetRanker.Targets calcTargetInput = m_targets;
+      publishTargetInfo(calcTargetInput, m_hsvThresholdOutput.cols(), m_hsvThresholdOutput.rows(), settings,
+        startTime, captureTime);
+
+      offerDebugFrame(m_resizeImageOutput, m_hsvThresholdOutput, m_filterContoursOutput, m_targets);
+      recordFrame(m_resizeImageOutput, m_targets, captureTime);
+    }
+
+    /**
+     * Send an annotated copy of this frame to the debug stream, if one is set and wants it.
+     */
+    void offerDebugFrame(Mat resizeImageOutput, Mat hsvThresholdOutput, List<MatOfPoint> filterContoursOutput,
+        TargetRanker.Targets targets) {
+      DebugStream debugStream = m_debugStream;
+      if (debugStream != null) {
+        debugStream.offer(resizeImageOutput, hsvThresholdOutput, filterContoursOutput, targets);
+      }
+    }
+
+    /**
+     * Send this frame and its published results to the recorder, if one is set.
+     */
+    void recordFrame(Mat resizeImageOutput, TargetRanker.Targets targets, long captureTime) {
+      FrameRecorder recorder = m_recorder;
+      if (recorder != null) {
+        recorder.offer(resizeImageOutput, targets, captureTime);
+      }
+    }
+
+    /**
+     * Set the publisher that sends each result over UDP, or null for none.
+     */
+    public void setUdpPublisher(UdpPublisher publisher) {
+      m_udpPublisher = publisher;
+    }
+
+    /**
+     * Set the recorder for frames and results, or null for none.
+     */
+    public void setRecorder(FrameRecorder recorder) {
+      m_recorder = recorder;
+    }
+
+    /**
+     * Set the annotated debug stream, or null for none.
+     */
+    public void setDebugStream(DebugStream debugStream) {
+      m_debugStream = debugStream;
+    }
+
+    /**
+     * Set the load governor that picks the processing resolution, or null for full resolution.
+     */
+    public void setLoadGovernor(LoadGovernor governor) {
+      m_governor = governor;
+    }
+
+    /**
+     * Set the filter that smooths and predicts the target angles, or null for none.
+     */
+    public void setTargetFilter(TargetFilter filter) {
+      m_targetFilter = filter;
+    }
+
+    /**
+     * Set the lens calibration used for angles and pose, or null to use the field of view.
+     * The calibration is used by this pipeline only.
+     */
+    public void setCalibration(CameraCalibration calibration) {
+      m_poseCalibration = calibration != null ? calibration.copy() : null;
+      m_calibration = calibration;
+    }
+
+    /**
+     * The load governor, or null when there is none.
+     */
+    LoadGovernor loadGovernor() {
+      return m_governor;
+    }
+
+    /**
+     * The current settings snapshot, to be read once per frame and passed to each step.
+     */
+    VisionSettings settings() {
+      return m_settings;
+    }
+
+    /**
+     * Use a new settings snapshot from the next frame on.
+     * Rebuilds the threshold table in the background if the thresholds changed.
+     * @param settings the new settings
+     */
+    public void setSettings(VisionSettings settings) {
+      m_thresholdTable.setThresholds(settings.hsvThresholdHue,
+        settings.hsvThresholdSaturation, settings.hsvThresholdValue);
+      m_settings = settings;
+    }
+
+    /**
+     * Expose the settings under this pipeline's {@code config} subtable so they can
+     * be tuned without a restart, persisting changes to a file.
+     * @param settingsFile the JSON file to load and save tuned values, or null to not persist
+     */
+    public void enableTuning(String settingsFile) {
+      enableTuning(settingsFile, null);
+    }
+
+    /**
+     * Expose the settings of one profile under {@code config/<profile>}, persisted
+     * in their own section of the file, so each profile is tuned separately.
+     * @param settingsFile the JSON file to load and save tuned values, or null to not persist
+     * @param profile the profile name, or null for the pipeline's own {@code config} subtable
+     */
+    public void enableTuning(String settingsFile, String profile) {
+      if (m_ntTable == null) {
+        return;
+      }
+      NetworkTable config = m_ntTable.getSubTable("config");
+      String section = m_ntTable.getPath();
+      if (profile != null) {
+        config = config.getSubTable(profile);
+        section = section + "/" + profile;
+      }
+      m_tuner = new VisionTuner(settingsFile, section, m_settings, this::setSettings);
+      m_tuner.start(config);
+    }
+
+    /**
+     * Stop listening for setting changes, e.g. when this pipeline is replaced.
+     */
+    public void stopTuning() {
+      if (m_tuner != null) {
+        m_tuner.stop();
+        m_tuner = null;
+      }
+    }
+
+    /**
+     * Also publish each result as one packed array entry and flush NT right away,
+     * so the robot gets consistent values without waiting for the NT update period.
+     * @param sequence the camera's shared sequence, or null to not use low-latency publishing
+     */
+    public void setLowLatencyPublish(ResultSequence sequence) {
+      m_resultSequence = sequence;
+    }
+
+    /**
+     * Find targets by first thresholding a decimated frame for candidate blobs,
+     * then thresholding and finding contours only around them at full resolution.
+     * Used on full-frame searches; searches near a tracked target are already small.
+     * @param enable true for coarse-to-fine, false to threshold the whole search area
+     */
+    public void setCoarseToFine(boolean enable) {
+      m_coarseToFine = enable;
+    }
+
+    /**
+     * Find contours by labelling the mask's blobs with connectedComponentsWithStats,
+     * rejecting blobs on their area and bounding box and tracing only the rest.
+     * Unlike the contour detector, holes inside blobs are never traced.
+     * @param enable true for connected components, false to trace every contour
+     */
+    public void setComponentDetection(boolean enable) {
+      m_componentDetection = enable;
+    }
+
+    /**
+     * Split the resize and the search-area threshold into horizontal bands run
+     * in parallel. Must be set before frames are processed.
+     * @param bands the number of bands, 1 or less to run each step as one pass
+     */
+    public void setBands(int bands) {
+      m_bandProcessor = bands > 1 ? new BandProcessor(bands) : null;
+    }
+
+    /**
+     * Search near the last target when possible, or always search the whole frame.
+     * Must be set before frames are processed.
+     * @param enable whether to use region-of-interest tracking
+     */
+    public void setTracking(boolean enable) {
+      m_tracker = enable ? new RoiTracker(VisionConstants.TrackingPadding, VisionConstants.TrackingRefreshFrames,
+        m_ntTable) : null;
+    }
+
+    /**
+     * Solve the pose of the best target on each frame, if pose estimation is built in.
+     * @param enable whether to estimate the pose
+     */
+    public void setPoseEnabled(boolean enable) {
+      m_poseEnabled = enable;
+    }
+
+    /**
+     * Process frames, or skip them for a profile that only streams.
+     * @param enable whether to process frames
+     */
+    public void setVisionEnabled(boolean enable) {
+      m_visionEnabled = enable;
+    }
+
+    /**
+     * Whether frames are processed at all.
+     */
+    boolean visionEnabled() {
+      return m_visionEnabled;
+    }
+
+    /**
+     * Called when this pipeline's profile is selected, so a profile that only
+     * streams publishes its empty result again.
+     */
+    void selected() {
+      m_noTargetPublished = false;
+    }
+
+    /**
+     * Whether a profile that only streams still has to publish its empty result
+     * since it was selected. Returns true once, for the frame that will publish it.
+     */
+    boolean takeNoTarget() {
+      if (m_noTargetPublished) {
+        return false;
+      }
+      m_noTargetPublished = true;
+      return true;
+    }
+
+    /**
+     * Publish an explicit no-target result, with the angles, pose and filter
+     * outputs zeroed and a UDP packet with no targets, and forget the tracked
+     * target. Used once when a profile that only streams becomes active, so the
+     * robot does not keep aiming at the last profile's result.
+     * @param targets the targets buffer to publish from, emptied first
+     * @param startTime System.nanoTime when the frame arrived
+     * @param captureTime the frame's capture time in NT/cscore microseconds, or 0 if unknown
+     */
+    void publishNoTarget(TargetRanker.Targets targets, long startTime, long captureTime) {
+      targets.reset(0);
+      m_ranker.reset();
+      TargetFilter filter = m_targetFilter;
+      if (filter != null) {
+        filter.reset();
+      }
+      publishTargetInfo(targets, (int) VisionConstants.ImageWidth, (int) VisionConstants.ImageHeight, m_settings,
+        startTime, captureTime);
+    }
+
+    /**
+     * Resize and threshold a camera frame into a binary mask.
+     * Only touches the given buffers and the threshold table, so it can run on its own thread.
+     * @param source0 The camera frame.
+     * @param resizeImageOutput The Mat to hold the resized frame.
+     * @param hsvThresholdOutput The Mat to hold the binary mask.
+     * @param searchArea Set to the area the tracker chose to search.
+     * @param thresholdArea Set to the part of the mask that was thresholded; outside it the mask is undefined.
+     * @param settings The frame's settings snapshot.
+     */
+    void preprocess(Mat source0, Mat resizeImageOutput, Mat hsvThresholdOutput, Rect searchArea,
+        Rect thresholdArea, VisionSettings settings) {
       // Step Resize_Image0
+      long stepStart = System.nanoTime();
       Mat resizeImageInput = source0;
-      double resizeImageWidth = VisionConstants.ImageWidth;
-      double resizeImageHeight = VisionConstants.ImageHeight;
+      LoadGovernor governor = m_governor;
+      double resizeImageScale = governor != null ? governor.scale() : 1.0;
+      double resizeImageWidth = VisionConstants.ImageWidth * resizeImageScale;
+      double resizeImageHeight = VisionConstants.ImageHeight * resizeImageScale;
       int resizeImageInterpolation = Imgproc.INTER_LINEAR;
-      resizeImage(resizeImageInput, resizeImageWidth, resizeImageHeight, resizeImageInterpolation, m_resizeImageOutput);
+      BandProcessor bands = m_bandProcessor;
+      if (bands != null) {
+        bands.resize(resizeImageInput, resizeImageOutput, (int) resizeImageWidth, (int) resizeImageHeight,
+          resizeImageInterpolation);
+      } else {
+        resizeImage(resizeImageInput, resizeImageWidth, resizeImageHeight, resizeImageInterpolation,
+          resizeImageOutput);
+      }
+      long stepEnd = System.nanoTime();
+      m_stats.record(PipelineStats.kResize, stepEnd - stepStart);
+      stepStart = stepEnd;
+
+      // Step Choose_Search_Area0:
+      int width = resizeImageOutput.cols();
+      int height = resizeImageOutput.rows();
+      if (m_tracker != null) {
+        m_tracker.nextSearchArea(width, height, searchArea);
+      } else {
+        searchArea.x = 0;
+        searchArea.y = 0;
+        searchArea.width = width;
+        searchArea.height = height;
+      }
+      boolean fullFrame = (searchArea.width == width && searchArea.height == height);
 
       // Step HSV_Threshold0:
-      Mat hsvThresholdInput = m_resizeImageOutput;
-      double[] hsvThresholdHue = VisionConstants.HsvThresholdHue;
-      double[] hsvThresholdSaturation = VisionConstants.HsvThresholdSaturation;
-      double[] hsvThresholdValue = VisionConstants.HsvThresholdValue;
-      hsvThreshold(hsvThresholdInput, hsvThresholdHue, hsvThresholdSaturation, hsvThresholdValue, m_hsvThresholdOutput);
+      hsvThresholdOutput.create(height, width, CvType.CV_8UC1);
+      if (fullFrame && m_coarseToFine) {
+        // Step Find_Candidates0:
+        findCandidates(resizeImageOutput, thresholdArea, settings);
+        if (thresholdArea.width > 0) {
+          Mat unused = hsvThresholdOutput.submat(thresholdArea);
+          unused.setTo(kZero);
+          unused.release();
+        }
+        for (int i = 0; i < m_candidates.size(); i++) {
+          thresholdArea(resizeImageOutput, hsvThresholdOutput, m_candidates.get(i), settings);
+        }
+      } else {
+        set(thresholdArea, searchArea.x, searchArea.y, searchArea.width, searchArea.height);
+        if (bands == null
+            || !bands.threshold(m_thresholdTable, resizeImageOutput, hsvThresholdOutput, searchArea, settings)) {
+          thresholdArea(resizeImageOutput, hsvThresholdOutput, searchArea, settings);
+        }
+      }
+      m_stats.record(PipelineStats.kThreshold, System.nanoTime() - stepStart);
+    }
 
+    /**
+     * Threshold one area of an image into the same area of a mask with a settings snapshot's bounds.
+     */
+    private void thresholdArea(Mat image, Mat mask, Rect area, VisionSettings settings) {
+      boolean whole = (area.width == image.cols() && area.height == image.rows());
+      Mat hsvThresholdInput = whole ? image : image.submat(area);
+      Mat hsvThresholdArea = whole ? mask : mask.submat(area);
+      if (!m_thresholdTable.apply(hsvThresholdInput, hsvThresholdArea, m_thresholdBuffers, settings)) {
+        // Table for these bounds still being built; threshold via a scratch Mat since the HSV step
+        // would otherwise reallocate a sub-Mat output
+        hsvThreshold(hsvThresholdInput, settings.hsvLower, settings.hsvUpper, m_searchAreaMask);
+        m_searchAreaMask.copyTo(hsvThresholdArea);
+      }
+
+      if (!whole) {
+        hsvThresholdInput.release();
+        hsvThresholdArea.release();
+      }
+    }
+
+    /**
+     * Threshold a decimated copy of the image and collect padded full-resolution
+     * boxes around every blob found, into m_candidates.
+     * @param image the resized camera frame
+     * @param union set to the bounding box of all candidates, or empty if there are none
+     * @param settings the frame's settings snapshot
+     */
+    private void findCandidates(Mat image, Rect union, VisionSettings settings) {
+      int width = image.cols();
+      int height = image.rows();
+      int factor = VisionConstants.CoarseFactor;
+      m_coarseSize.width = Math.max(1, width / factor);
+      m_coarseSize.height = Math.max(1, height / factor);
+      Imgproc.resize(image, m_coarseImage, m_coarseSize, 0.0, 0.0, Imgproc.INTER_AREA);
+      m_coarseMask.create(m_coarseImage.rows(), m_coarseImage.cols(), CvType.CV_8UC1);
+      set(m_coarseArea, 0, 0, m_coarseImage.cols(), m_coarseImage.rows());
+      thresholdArea(m_coarseImage, m_coarseMask, m_coarseArea, settings);
+
+      Imgproc.findContours(m_coarseMask, m_coarseContours, m_coarseHierarchy, Imgproc.RETR_EXTERNAL,
+        Imgproc.CHAIN_APPROX_SIMPLE);
+
+      int count = m_coarseContours.size();
+      while (m_candidates.size() < count) {
+        m_candidates.add(new Rect());
+      }
+      while (m_candidates.size() > count) {
+        m_candidates.remove(m_candidates.size() - 1);
+      }
+
+      int padding = VisionConstants.CoarsePadding;
+      int ux0 = width, uy0 = height, ux1 = 0, uy1 = 0;
+      for (int i = 0; i < count; i++) {
+        Rect bb = Imgproc.boundingRect(m_coarseContours.get(i));
+        int x0 = Math.max(0, bb.x * factor - padding);
+        int y0 = Math.max(0, bb.y * factor - padding);
+        int x1 = Math.min(width, (bb.x + bb.width) * factor + padding);
+        int y1 = Math.min(height, (bb.y + bb.height) * factor + padding);
+        set(m_candidates.get(i), x0, y0, x1 - x0, y1 - y0);
+        ux0 = Math.min(ux0, x0);
+        uy0 = Math.min(uy0, y0);
+        ux1 = Math.max(ux1, x1);
+        uy1 = Math.max(uy1, y1);
+      }
+      if (count == 0) {
+        set(union, 0, 0, 0, 0);
+      } else {
+        set(union, ux0, uy0, ux1 - ux0, uy1 - uy0);
+      }
+    }
+
+    private static void set(Rect rect, int x, int y, int width, int height) {
+      rect.x = x;
+      rect.y = y;
+      rect.width = width;
+      rect.height = height;
+    }
+
+    /**
+     * Find, filter and rank the target contours in a binary mask.
+     * Uses the pipeline's filter and ranking state, so only one thread may call it at a time.
+     * @param hsvThresholdOutput The binary mask from preprocess.
+     * @param searchArea The area the tracker chose to search.
+     * @param thresholdArea The part of the mask that preprocess thresholded.
+     * @param findContoursOutput The list to hold all contours found.
+     * @param filterContoursOutput The list to hold the contours that pass the filter.
+     * @param targets Set to the passing contours' centers and scores, best first.
+     * @param settings The frame's settings snapshot, the same one preprocess used.
+     */
+    void detect(Mat hsvThresholdOutput, Rect searchArea, Rect thresholdArea,
+        ArrayList<MatOfPoint> findContoursOutput, ArrayList<MatOfPoint> filterContoursOutput,
+        TargetRanker.Targets targets, VisionSettings settings) {
       // Step Find_Contours0:
-      Mat findContoursInput = m_hsvThresholdOutput;
-      boolean findContoursExternalOnly = false;
-      findContours(findContoursInput, findContoursExternalOnly, m_findContoursOutput); 
+      long stepStart = System.nanoTime();
+      int width = hsvThresholdOutput.cols();
+      int height = hsvThresholdOutput.rows();
+      if (thresholdArea.width == 0 || thresholdArea.height == 0) {
+        // Coarse search found no candidates
+        findContoursOutput.clear();
+      } else if (m_componentDetection) {
+        // Step Find_Components0:
+        findComponents(hsvThresholdOutput, thresholdArea, width / VisionConstants.ImageWidth, settings,
+          findContoursOutput);
+      } else {
+        boolean fullFrame = (thresholdArea.width == width && thresholdArea.height == height);
+        Mat findContoursInput = fullFrame ? hsvThresholdOutput : hsvThresholdOutput.submat(thresholdArea);
+        boolean findContoursExternalOnly = false;
+        findContours(findContoursInput, findContoursExternalOnly, thresholdArea.x, thresholdArea.y,
+          findContoursOutput);
+        if (!fullFrame) {
+          findContoursInput.release();
+        }
+      }
+      long stepEnd = System.nanoTime();
+      m_stats.record(PipelineStats.kContours, stepEnd - stepStart);
+      stepStart = stepEnd;
       
       // Step Filter_Contours0:
-      ArrayList<MatOfPoint> filterContoursInput = m_findContoursOutput;
-      double filterContoursMinArea = VisionConstants.FilterContoursMinArea;
-      double filterContoursMinPerimeter = VisionConstants.FilterContoursMinPerimeter;
-      double filterContoursMinWidth = VisionConstants.FilterContoursMinWidth;
-      double filterContoursMinHeight = VisionConstants.FilterContoursMinHeight;
-      double[] filterContoursSolidity = VisionConstants.FilterContoursSolidity;
-      double filterContoursMinVertices = VisionConstants.FilterContoursMinVertices;
-      double filterContoursMinRatio = VisionConstants.FilterContoursMinRatio;
-      filterContours(filterContoursInput, 
-        filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMinHeight, 
-        filterContoursSolidity, filterContoursMinVertices, filterContoursMinRatio, 
-        m_filterContoursOutput);
+      // Pixel limits are tuned at full resolution, so scale them to this mask
+      filterContoursStage(findContoursOutput, filterContoursOutput, settings, width / VisionConstants.ImageWidth);
+      stepEnd = System.nanoTime();
+      m_stats.record(PipelineStats.kFilter, stepEnd - stepStart);
+      stepStart = stepEnd;
+
+      // Step Rank_Targets0:
+      m_ranker.rank(filterContoursOutput, m_filterSolidity, m_filterRatio, settings, width, height, targets);
+      stepEnd = System.nanoTime();
+      m_stats.record(PipelineStats.kRank, stepEnd - stepStart);
+      stepStart = stepEnd;
+
+      // Step Estimate_Pose0:
+      int best = targets.best();
+      if (m_poseEstimator != null && m_poseEnabled && best >= 0) {
+        targets.hasPose = m_poseEstimator.estimate(filterContoursOutput.get(best), width, height,
+          settings, m_poseCalibration, targets.pose);
+        m_stats.record(PipelineStats.kPose, System.nanoTime() - stepStart);
+      }
 
-      // Step Publish Target Info to Network Table
-      ArrayList<MatOfPoint> calcTargetInput = m_filterContoursOutput;
-      publishTargetInfo(calcTargetInput);
+      // Step Update_Tracking0:
+      if (m_tracker != null) {
+        m_tracker.update(searchArea, width, height, best >= 0 ? filterContoursOutput.get(best) : null);
+      }
+    }
+
+
+    /**
+     * Label the blobs in one area of a mask and trace the outer contour of each blob
+     * that could pass the filter. The label stats give every blob's bounding box in
+     * one pass, and the outer contour has the same bounding box. Its area is checked
+     * against the box's area, not the blob's pixel count: the contour also encloses
+     * any holes in the blob, such as the inside of a hollow target, but never more
+     * than its box. So the check never drops a blob the filter would keep.
+     * @param mask the binary mask
+     * @param area the part of the mask to search
+     * @param scale the mask width over ImageWidth, to scale the filter's pixel limits
+     * @param settings the frame's settings snapshot
+     * @param contours set to the traced contours, in mask coordinates
+     */
+    private void findComponents(Mat mask, Rect area, double scale, VisionSettings settings,
+        List<MatOfPoint> contours) {
+      contours.clear();
+      boolean whole = (area.width == mask.cols() && area.height == mask.rows());
+      Mat input = whole ? mask : mask.submat(area);
+      int count = Imgproc.connectedComponentsWithStats(input, m_labels, m_componentStats, m_componentCentroids,
+        8, CvType.CV_32S);
+      if (m_componentValues.length < count * Imgproc.CC_STAT_MAX) {
+        m_componentValues = new int[count * Imgproc.CC_STAT_MAX * 2];
+      }
+      final int[] values = m_componentValues;
+      m_componentStats.get(0, 0, values);
+
+      double minArea = settings.filterContoursMinArea * scale * scale;
+      double minWidth = settings.filterContoursMinWidth * scale;
+      double minHeight = settings.filterContoursMinHeight * scale;
+      double minRatio = settings.filterContoursMinRatio;
+
+      // Label 0 is the background
+      for (int label = 1; label < count; label++) {
+        int s = label * Imgproc.CC_STAT_MAX;
+        int x = values[s + Imgproc.CC_STAT_LEFT];
+        int y = values[s + Imgproc.CC_STAT_TOP];
+        int w = values[s + Imgproc.CC_STAT_WIDTH];
+        int h = values[s + Imgproc.CC_STAT_HEIGHT];
+        if (w < minWidth || h < minHeight || (double) w * h < minArea || w / (double) h < minRatio) {
+          continue;
+        }
+
+        // Trace just this blob, from its labels inside its bounding box
+        set(m_componentBox, x, y, w, h);
+        Mat labels = m_labels.submat(m_componentBox);
+        m_componentLabel.val[0] = label;
+        Core.compare(labels, m_componentLabel, m_componentMask, Core.CMP_EQ);
+        labels.release();
+        m_componentOffset.x = area.x + x;
+        m_componentOffset.y = area.y + y;
+        m_componentContours.clear();
+        Imgproc.findContours(m_componentMask, m_componentContours, m_componentHierarchy, Imgproc.RETR_EXTERNAL,
+          Imgproc.CHAIN_APPROX_SIMPLE, m_componentOffset);
+        contours.addAll(m_componentContours);
+      }
+
+      if (!whole) {
+        input.release();
+      }
     }
 
-    
     /**
      * This method is a generated getter for the output of a Resize_Image.
      * @return Mat output from Resize_Image.
@@ -463,6 +1953,122 @@ public final class Main {
       return m_resizeImageOutput;
     }
 
+    /**
+     * This method is a generated getter for the output of a HSV_Threshold.
+     * @return Mat output from HSV_Threshold.
+     */
+    public Mat hsvThresholdOutput() {
+      return m_hsvThresholdOutput;
+    }
+
+    /*
+     * Single-stage entry points with the pipeline's constants, used by detect and StageBenchmark.
+     */
+
+    void resizeStage(Mat input, Mat output) {
+      resizeImage(input, VisionConstants.ImageWidth, VisionConstants.ImageHeight, Imgproc.INTER_LINEAR, output);
+    }
+
+    void hsvThresholdStage(Mat input, Mat output) {
+      VisionSettings settings = m_settings;
+      hsvThreshold(input, settings.hsvLower, settings.hsvUpper, output);
+    }
+
+    boolean tableThresholdStage(Mat input, Mat output) {
+      return m_thresholdTable.apply(input, output);
+    }
+
+    boolean bandedThresholdStage(BandProcessor bands, Mat input, Mat output, Rect area) {
+      output.create(input.rows(), input.cols(), CvType.CV_8UC1);
+      return bands.threshold(m_thresholdTable, input, output, area, m_settings);
+    }
+
+    void findContoursStage(Mat input, boolean externalOnly, List<MatOfPoint> contours) {
+      findContours(input, externalOnly, 0, 0, contours);
+    }
+
+    void findComponentsStage(Mat mask, VisionSettings settings, List<MatOfPoint> contours) {
+      findComponents(mask, new Rect(0, 0, mask.cols(), mask.rows()), mask.cols() / VisionConstants.ImageWidth,
+        settings, contours);
+    }
+
+    void filterContoursStage(List<MatOfPoint> filterContoursInput, List<MatOfPoint> filterContoursOutput) {
+      filterContoursStage(filterContoursInput, filterContoursOutput, 1.0);
+    }
+
+    void filterContoursStage(List<MatOfPoint> filterContoursInput, List<MatOfPoint> filterContoursOutput,
+        double scale) {
+      filterContoursStage(filterContoursInput, filterContoursOutput, m_settings, scale);
+    }
+
+    void filterContoursStage(List<MatOfPoint> filterContoursInput, List<MatOfPoint> filterContoursOutput,
+        VisionSettings settings, double scale) {
+      double filterContoursMinArea = settings.filterContoursMinArea * scale * scale;
+      double filterContoursMinPerimeter = settings.filterContoursMinPerimeter * scale;
+      double filterContoursMinWidth = settings.filterContoursMinWidth * scale;
+      double filterContoursMinHeight = settings.filterContoursMinHeight * scale;
+      double[] filterContoursSolidity = settings.filterContoursSolidity;
+      double filterContoursMinVertices = settings.filterContoursMinVertices;
+      double filterContoursMinRatio = settings.filterContoursMinRatio;
+      filterContours(filterContoursInput, 
+        filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMinHeight, 
+        filterContoursSolidity, filterContoursMinVertices, filterContoursMinRatio, 
+        filterContoursOutput);
+    }
+
+    /**
+     * Wait for background setup such as the threshold table to finish.
+     * @param timeoutMs the longest time to wait in milliseconds
+     * @return true if the pipeline is fully warmed up
+     */
+    public boolean awaitWarm(long timeoutMs) {
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      while (!m_thresholdTable.isReady(m_settings) && System.currentTimeMillis() < deadline) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      return m_thresholdTable.isReady(m_settings);
+    }
+
+    /**
+     * Run frames through the resize, threshold and detect steps without publishing,
+     * so buffers are allocated and the steps are compiled before the first camera frame.
+     * Tracking, ranking and statistics start fresh afterwards.
+     * @param frames the frames to run, e.g. from StageBenchmark.syntheticFrames
+     */
+    public void warmUp(List<Mat> frames) {
+      RoiTracker tracker = m_tracker;
+      m_tracker = null;
+      for (Mat frame : frames) {
+        VisionSettings settings = m_settings;
+        preprocess(frame, m_resizeImageOutput, m_hsvThresholdOutput, m_searchArea, m_thresholdArea, settings);
+        detect(m_hsvThresholdOutput, m_searchArea, m_thresholdArea, m_findContoursOutput, m_filterContoursOutput,
+          m_targets, settings);
+      }
+      m_tracker = tracker;
+      m_ranker.reset();
+      m_stats.reset();
+    }
+
+    /**
+     * Turn off region-of-interest tracking, so every frame is searched in full.
+     * For comparing detection modes frame by frame.
+     */
+    void disableTracking() {
+      m_tracker = null;
+    }
+
+    /**
+     * The region-of-interest tracker, or null when tracking is disabled.
+     */
+    RoiTracker tracker() {
+      return m_tracker;
+    }
+
     /**
      * This method is a generated getter for the output of a Filter_Contours.
      * @return ArrayList<MatOfPoint> output from Filter_Contours.
@@ -488,15 +2094,13 @@ public final class Main {
      * Segment an image based on hue, saturation, and value ranges.
      *
      * @param input The image on which to perform the HSL threshold.
-     * @param hue The min and max hue
-     * @param sat The min and max saturation
-     * @param val The min and max value
+     * @param lower The min hue, saturation and value
+     * @param upper The max hue, saturation and value
      * @param output The image in which to store the output.
      */
-    private void hsvThreshold(Mat input, double[] hue, double[] sat, double[] val, Mat output) {
+    private void hsvThreshold(Mat input, Scalar lower, Scalar upper, Mat output) {
       Imgproc.cvtColor(input, output, Imgproc.COLOR_BGR2HSV);
-      Core.inRange(output, new Scalar(hue[0], sat[0], val[0]),
-                           new Scalar(hue[1], sat[1], val[1]), output);
+      Core.inRange(output, lower, upper, output);
     }
 
     /**
@@ -504,10 +2108,12 @@ public final class Main {
      * @param input The image on which to perform the Distance Transform.
      * @param type The Transform.
      * @param maskSize the size of the mask.
+     * @param offsetX added to every contour x, for inputs that are a sub-Mat of the frame
+     * @param offsetY added to every contour y, for inputs that are a sub-Mat of the frame
      * @param output The image in which to store the output.
      */
-    private void findContours(Mat input, boolean externalOnly, List<MatOfPoint> contours) {
-      Mat hierarchy = new Mat();
+    private void findContours(Mat input, boolean externalOnly, int offsetX, int offsetY, List<MatOfPoint> contours) {
+      Mat hierarchy = m_hierarchy;
       contours.clear();
 
       int mode;
@@ -519,7 +2125,9 @@ public final class Main {
       }
 
       int method = Imgproc.CHAIN_APPROX_SIMPLE;
-      Imgproc.findContours(input, contours, hierarchy, mode, method);
+      m_contourOffset.x = offsetX;
+      m_contourOffset.y = offsetY;
+      Imgproc.findContours(input, contours, hierarchy, mode, method, m_contourOffset);
     }
 
     /**
@@ -539,48 +2147,115 @@ public final class Main {
       double[] solidity, double minVertexCount, double minRatio, 
       List<MatOfPoint> output) {
 
-      final MatOfInt hull = new MatOfInt();
       output.clear();
       
       //operation
       for (int i = 0; i < inputContours.size(); i++) {
         final MatOfPoint contour = inputContours.get(i);
+        final int count = contour.rows();
+        if (count == 0) continue;
+
+        // Read the contour points once, as interleaved x,y pairs
+        if (m_contourPoints.length < count * 2) {
+          m_contourPoints = new int[count * 2];
+        }
+        final int[] pts = m_contourPoints;
+        contour.get(0, 0, pts);
         
-        // Filter by Width & Height
-        final Rect bb = Imgproc.boundingRect(contour);
-        if (bb.width < minWidth) continue;
-        if (bb.height < minHeight) continue;
+        // Filter by Width & Height (same inclusive extent as Imgproc.boundingRect)
+        int minX = pts[0], maxX = pts[0];
+        int minY = pts[1], maxY = pts[1];
+        for (int j = 2; j < count * 2; j += 2) {
+          if (pts[j] < minX) minX = pts[j];
+          else if (pts[j] > maxX) maxX = pts[j];
+          if (pts[j + 1] < minY) minY = pts[j + 1];
+          else if (pts[j + 1] > maxY) maxY = pts[j + 1];
+        }
+        final int bbWidth = maxX - minX + 1;
+        final int bbHeight = maxY - minY + 1;
+        if (bbWidth < minWidth) continue;
+        if (bbHeight < minHeight) continue;
         
         // Filter by Area & Perimeter
-        final double area = Imgproc.contourArea(contour);
+        final double area = polygonArea(pts, null, count);
         if (area < minArea) continue;
-        if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter) continue;
+        if (closedArcLength(pts, count) < minPerimeter) continue;
         
         // Filter by Solidity
-        Imgproc.convexHull(contour, hull);
-        MatOfPoint mopHull = new MatOfPoint();
-        mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-        for (int j = 0; j < hull.size().height; j++) {
-          int index = (int)hull.get(j, 0)[0];
-          double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-          mopHull.put(j, 0, point);
-        }
-        final double solid = 100 * area / Imgproc.contourArea(mopHull);
+        Imgproc.convexHull(contour, m_hull);
+        final int hullCount = m_hull.rows();
+        if (m_hullIndices.length < hullCount) {
+          m_hullIndices = new int[Math.max(hullCount, m_hullIndices.length * 2)];
+        }
+        m_hull.get(0, 0, m_hullIndices);
+        final double solid = 100 * area / polygonArea(pts, m_hullIndices, hullCount);
         if (solid < solidity[0] || solid > solidity[1]) continue;
         
         // Filter by number of vertices
-        if (contour.rows() < minVertexCount)	continue;
+        if (count < minVertexCount)	continue;
         
         // Filter by ratio
-        final double ratio = bb.width / (double)bb.height;
+        final double ratio = bbWidth / (double)bbHeight;
         if (ratio < minRatio) continue;
         
         // Filter be Concavity
         if (Imgproc.isContourConvex(contour)) continue;
 
+        // Keep what ranking needs, so it is not computed twice
+        final int kept = output.size();
+        if (m_filterSolidity.length <= kept) {
+          m_filterSolidity = Arrays.copyOf(m_filterSolidity, kept * 2);
+          m_filterRatio = Arrays.copyOf(m_filterRatio, kept * 2);
+        }
+        m_filterSolidity[kept] = solid;
+        m_filterRatio[kept] = ratio;
         output.add(contour);
       }
     }
+
+    /**
+     * Area of a polygon given as interleaved integer x,y pairs.
+     * Matches Imgproc.contourArea exactly since integer coordinates sum without rounding.
+     * @param pts the interleaved x,y coordinates
+     * @param indices optional indices into pts selecting the vertices (e.g. a convex hull), or null
+     * @param count the number of vertices
+     * @return the unsigned area of the polygon
+     */
+    private static double polygonArea(int[] pts, int[] indices, int count) {
+      if (count < 3) return 0.0;
+
+      long a2 = 0;
+      int prev = (indices == null ? count - 1 : indices[count - 1]) * 2;
+      for (int j = 0; j < count; j++) {
+        int cur = (indices == null ? j : indices[j]) * 2;
+        a2 += (long)pts[prev] * pts[cur + 1] - (long)pts[cur] * pts[prev + 1];
+        prev = cur;
+      }
+      return Math.abs(a2 * 0.5);
+    }
+
+    /**
+     * Perimeter of a closed contour given as interleaved integer x,y pairs.
+     * Uses the same float steps as Imgproc.arcLength so the result is identical.
+     * @param pts the interleaved x,y coordinates
+     * @param count the number of points
+     * @return the length of the closed curve
+     */
+    private static double closedArcLength(int[] pts, int count) {
+      double perimeter = 0.0;
+      float prevX = pts[(count - 1) * 2];
+      float prevY = pts[(count - 1) * 2 + 1];
+      for (int j = 0; j < count; j++) {
+        float x = pts[j * 2];
+        float y = pts[j * 2 + 1];
+        float dx = x - prevX;
+        float dy = y - prevY;
+        perimeter += (float)Math.sqrt(dx * dx + dy * dy);
+        prevX = x;
+        prevY = y;
+      }
+      return perimeter;
+    }
     
     /**
      * Find the center of the provided contour
@@ -598,14 +2273,25 @@ public final class Main {
     }
 
     /**
-     * Find the offset between the center of the image and a point
+     * Find the offset between the center of a full-resolution image and a point
      * Normalize the coordinates so (0,0) is the center and the upper right corner is (1,1) 
      * @param point the point to translate 
      * @return The normalized coordinates to the specified point
      */
     public Point findOffset(Point point) {
-      double halfWidth = (VisionConstants.ImageWidth / 2);
-      double halfHeight = (VisionConstants.ImageHeight / 2);
+      return findOffset(point, VisionConstants.ImageWidth, VisionConstants.ImageHeight);
+    }
+
+    /**
+     * Find the normalized offset of a point in an image of the given size
+     * @param point the point to translate
+     * @param imageWidth the width of the image the point was found in
+     * @param imageHeight the height of the image the point was found in
+     * @return The normalized coordinates to the specified point
+     */
+    public Point findOffset(Point point, double imageWidth, double imageHeight) {
+      double halfWidth = (imageWidth / 2);
+      double halfHeight = (imageHeight / 2);
 
       double offsetX = (point.x - (halfWidth - 0.5)) / halfWidth;
       double offsetY = ((halfHeight - 0.5) - point.y) / halfHeight;
@@ -619,7 +2305,11 @@ public final class Main {
      * @return the angle from the center to the given X coordinate
      */
     public double findAngleX(double xCoord) {
-      double planeX = xCoord * VisionConstants.ViewPlaneWidth / 2.0;
+      return findAngleX(xCoord, m_settings);
+    }
+
+    private static double findAngleX(double xCoord, VisionSettings settings) {
+      double planeX = xCoord * settings.viewPlaneWidth / 2.0;
       double angleX = Math.toDegrees(Math.atan2(planeX, 1));
       
       return angleX;
@@ -631,41 +2321,173 @@ public final class Main {
      * @return the angle from the center to the given Y coordinate
      */
     public double findAngleY(double yCoord) {
-      double planeY = yCoord * VisionConstants.ViewPlaneHeight / 2.0;
+      return findAngleY(yCoord, m_settings);
+    }
+
+    private static double findAngleY(double yCoord, VisionSettings settings) {
+      double planeY = yCoord * settings.viewPlaneHeight / 2.0;
       double angleY = Math.toDegrees(Math.atan2(planeY, 1));
 
       return angleY;
     }
 
     /**
-     * Publish info about the target to the network table
-     * @param inputContours
+     * Find the angles from the camera axis to a pixel
+     * Uses the lens calibration when there is one, which corrects for distortion, otherwise the field of view
+     * Uses the pipeline's undistortion buffers, so only the publish step may call it
+     * @param x the pixel x coordinate
+     * @param y the pixel y coordinate
+     * @param imageWidth the width of the image the pixel is in
+     * @param imageHeight the height of the image the pixel is in
+     * @param settings the settings snapshot holding the field of view
+     * @param angles set to the horizontal and vertical angles in degrees, positive right and up
      */
-    private void publishTargetInfo(List<MatOfPoint> inputContours) {
-      int matches = inputContours.size();
+    void findAngles(double x, double y, int imageWidth, int imageHeight, VisionSettings settings, double[] angles) {
+      CameraCalibration calibration = m_calibration;
+      if (calibration != null) {
+        calibration.undistort(x, y, imageWidth, imageHeight, m_normalized);
+        angles[0] = Math.toDegrees(Math.atan(m_normalized[0]));
+        angles[1] = Math.toDegrees(Math.atan(-m_normalized[1]));
+      } else {
+        Point offset = findOffset(new Point(x, y), imageWidth, imageHeight);
+        angles[0] = findAngleX(offset.x, settings);
+        angles[1] = findAngleY(offset.y, settings);
+      }
+    }
+
+    /**
+     * Publish info about the best target, and the top ranked ones, to the network table
+     * @param targets the ranked targets
+     * @param imageWidth the width of the mask the contours were found in
+     * @param imageHeight the height of the mask the contours were found in
+     * @param settings the frame's settings snapshot
+     * @param startTime System.nanoTime when processing of this frame started
+     * @param captureTime the frame's capture time in NT/cscore microseconds, or 0 if unknown
+     */
+    void publishTargetInfo(TargetRanker.Targets targets, int imageWidth, int imageHeight, VisionSettings settings,
+        long startTime, long captureTime) {
+      long stepStart = System.nanoTime();
+      int matches = targets.count;
 
       Point center = new Point(0,0);
       Point offset = new Point(0,0);
       double angleX = 0.0;
       double angleY = 0.0;
 
-      if (matches == 1) {
-        // Get the coordinates to the center of the contour
-        center = findCenter(inputContours.get(0));
+      if (matches >= 1) {
+        // Get the coordinates to the center of the best contour, from its moments
+        int best = targets.best();
+        center = new Point(targets.centerX[best], targets.centerY[best]);
         // Get the normalized offset from the center of the image to the center of the contour
-        offset = findOffset(center);
-        // Get the angles from the center of the image to offset
-        angleX = findAngleX(offset.x);
-        angleY = findAngleY(offset.y);
+        offset = findOffset(center, imageWidth, imageHeight);
+        // Get the angles from the camera axis to the center, correcting for the lens if calibrated
+        findAngles(center.x, center.y, imageWidth, imageHeight, settings, m_angles);
+        angleX = m_angles[0];
+        angleY = m_angles[1];
+      }
+      targets.angleX = angleX;
+      targets.angleY = angleY;
+
+      // Step Send_UDP0: ahead of NT, which batches its updates
+      UdpPublisher udpPublisher = m_udpPublisher;
+      if (udpPublisher != null) {
+        udpPublisher.send(captureTime, matches, center.x, center.y, offset.x, offset.y, angleX, angleY);
+      }
+
+      if (matches >= 1 && !s_firstTarget.get() && s_firstTarget.compareAndSet(false, true)) {
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        System.out.println("First target published " + uptime + " ms after JVM start");
+        if (m_ntTable != null) {
+          NTE.firstTarget.setDouble(uptime);
+        }
+      }
+
+      // Step Filter_Target0:
+      TargetFilter filter = m_targetFilter;
+      if (filter != null) {
+        if (matches >= 1) {
+          filter.update(angleX, angleY, captureTime != 0 ? captureTime : startTime / 1000);
+        } else {
+          filter.reset();
+        }
       }
       
-      NTE.targetCount.setNumber(matches);
-      NTE.centerX.setDouble(center.x);
-      NTE.centerY.setDouble(center.y);
-      NTE.offsetX.setDouble(offset.x);
-      NTE.offsetY.setDouble(offset.y);
-      NTE.angleX.setDouble(angleX);
-      NTE.angleY.setDouble(angleY);
+      if (m_ntTable != null) {
+        NTE.targetCount.setNumber(matches);
+        NTE.centerX.setDouble(center.x);
+        NTE.centerY.setDouble(center.y);
+        NTE.offsetX.setDouble(offset.x);
+        NTE.offsetY.setDouble(offset.y);
+        NTE.angleX.setDouble(angleX);
+        NTE.angleY.setDouble(angleY);
+
+        int top = Math.min(matches, VisionConstants.MaxTargets);
+        double[] packed = m_topTargets[top];
+        for (int i = 0; i < top; i++) {
+          int t = targets.order[i];
+          Point targetOffset = findOffset(new Point(targets.centerX[t], targets.centerY[t]), imageWidth, imageHeight);
+          packed[i * 6] = targetOffset.x;
+          packed[i * 6 + 1] = targetOffset.y;
+          findAngles(targets.centerX[t], targets.centerY[t], imageWidth, imageHeight, settings, m_angles);
+          packed[i * 6 + 2] = m_angles[0];
+          packed[i * 6 + 3] = m_angles[1];
+          packed[i * 6 + 4] = targets.area[t];
+          packed[i * 6 + 5] = targets.score[t];
+        }
+        NTE.targets.setDoubleArray(packed);
+
+        if (m_poseEstimator != null) {
+          boolean hasPose = targets.hasPose;
+          NTE.distance.setDouble(hasPose ? targets.pose[PoseEstimator.kDistance] : 0.0);
+          NTE.yaw.setDouble(hasPose ? targets.pose[PoseEstimator.kYaw] : 0.0);
+          m_translation[0] = hasPose ? targets.pose[PoseEstimator.kTranslationX] : 0.0;
+          m_translation[1] = hasPose ? targets.pose[PoseEstimator.kTranslationY] : 0.0;
+          m_translation[2] = hasPose ? targets.pose[PoseEstimator.kTranslationZ] : 0.0;
+          NTE.translation.setDoubleArray(m_translation);
+        }
+
+        if (filter != null) {
+          boolean valid = filter.isValid();
+          // Predict over everything since capture, or since processing started if the capture time is unknown
+          double latency = captureTime != 0
+              ? (NetworkTablesJNI.now() - captureTime) * 1e-6 : (System.nanoTime() - startTime) * 1e-9;
+          NTE.filteredX.setDouble(valid ? filter.angle(TargetFilter.kX) : 0.0);
+          NTE.filteredY.setDouble(valid ? filter.angle(TargetFilter.kY) : 0.0);
+          NTE.predictedX.setDouble(valid ? filter.predict(TargetFilter.kX, latency) : 0.0);
+          NTE.predictedY.setDouble(valid ? filter.predict(TargetFilter.kY, latency) : 0.0);
+          NTE.velocityX.setDouble(valid ? filter.rate(TargetFilter.kX) : 0.0);
+          NTE.velocityY.setDouble(valid ? filter.rate(TargetFilter.kY) : 0.0);
+        }
+
+        ResultSequence sequence = m_resultSequence;
+        if (sequence != null) {
+          m_result[0] = ++sequence.m_sequence;
+          m_result[1] = captureTime;
+          m_result[2] = matches;
+          m_result[3] = center.x;
+          m_result[4] = center.y;
+          m_result[5] = offset.x;
+          m_result[6] = offset.y;
+          m_result[7] = angleX;
+          m_result[8] = angleY;
+          NTE.result.setDoubleArray(m_result);
+
+          // Rate-limit flushes so a fast pipeline cannot flood the link
+          if (stepStart - sequence.m_lastFlush >= VisionConstants.MinFlushPeriod) {
+            m_ntTable.getInstance().flush();
+            sequence.m_lastFlush = stepStart;
+          }
+        }
+      }
+
+      long stepEnd = System.nanoTime();
+      m_stats.record(PipelineStats.kPublish, stepEnd - stepStart);
+      m_stats.frameDone(stepEnd - startTime);
+
+      LoadGovernor governor = m_governor;
+      if (governor != null) {
+        governor.frameDone(stepEnd - startTime);
+      }
 
     }
   }
@@ -0,0 +1,180 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+ * Per-stage latency statistics for the vision pipeline.
+ *
+ * <p>Stage times go into fixed-bucket histograms, so recording a sample never
+ * allocates. Once per window the p50/p99 of each stage, the total pipeline
+ * latency and the achieved FPS are published under the {@code perf} subtable
+ * and the histograms start over.
+ */
+public final class PipelineStats {
+  public static final int kResize = 0;
+  public static final int kThreshold = 1;
+  public static final int kContours = 2;
+  public static final int kFilter = 3;
+  public static final int kRank = 4;
+  public static final int kPose = 5;
+  public static final int kPublish = 6;
+  public static final int kTotal = 7;
+  private static final String[] kNames =
+      {"resize", "threshold", "contours", "filter", "rank", "pose", "publish", "total"};
+
+  private static final long kWindowNanos = 1_000_000_000L;
+
+  /**
+   * Log-linear histogram of microsecond latencies: 1 us buckets below 64 us,
+   * then 16 buckets per doubling up to about 1 s.
+   */
+  static final class LatencyHistogram {
+    private static final int kLinear = 64;
+    private static final int kSubBuckets = 16;
+    private static final int kOctaves = 15;
+    private static final int kBuckets = kLinear + kOctaves * kSubBuckets;
+
+    private final AtomicIntegerArray m_counts = new AtomicIntegerArray(kBuckets);
+
+    void record(long nanos) {
+      m_counts.incrementAndGet(bucket(nanos / 1000));
+    }
+
+    /**
+     * The latency at the given percentile, in milliseconds, or 0 with no samples.
+     */
+    double percentile(double pct) {
+      long total = 0;
+      for (int i = 0; i < kBuckets; i++) {
+        total += m_counts.get(i);
+      }
+      if (total == 0) {
+        return 0.0;
+      }
+
+      long rank = (long) Math.ceil(pct / 100.0 * total);
+      long seen = 0;
+      for (int i = 0; i < kBuckets; i++) {
+        seen += m_counts.get(i);
+        if (seen >= rank) {
+          return lowerBound(i) / 1000.0;
+        }
+      }
+      return lowerBound(kBuckets - 1) / 1000.0;
+    }
+
+    void reset() {
+      for (int i = 0; i < kBuckets; i++) {
+        m_counts.set(i, 0);
+      }
+    }
+
+    static int bucket(long micros) {
+      if (micros < kLinear) {
+        return (int) Math.max(0, micros);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(micros);
+      int octave = exponent - 6;
+      if (octave >= kOctaves) {
+        return kBuckets - 1;
+      }
+      int sub = (int) (micros >>> (exponent - 4)) & (kSubBuckets - 1);
+      return kLinear + octave * kSubBuckets + sub;
+    }
+
+    static long lowerBound(int bucket) {
+      if (bucket < kLinear) {
+        return bucket;
+      }
+      int octave = (bucket - kLinear) / kSubBuckets;
+      int sub = (bucket - kLinear) % kSubBuckets;
+      int exponent = octave + 6;
+      return (1L << exponent) + ((long) sub << (exponent - 4));
+    }
+  }
+
+  private final LatencyHistogram[] m_stages = new LatencyHistogram[kNames.length];
+  private final NetworkTableEntry[] m_p50 = new NetworkTableEntry[kNames.length];
+  private final NetworkTableEntry[] m_p99 = new NetworkTableEntry[kNames.length];
+  private NetworkTableEntry m_fps;
+  private NetworkTableEntry m_latency;
+
+  private long m_windowStart = System.nanoTime();
+  private int m_windowFrames;
+
+  /**
+   * Create stats for one pipeline.
+   * @param table the pipeline's table, or null to collect without publishing
+   */
+  public PipelineStats(NetworkTable table) {
+    for (int i = 0; i < kNames.length; i++) {
+      m_stages[i] = new LatencyHistogram();
+    }
+
+    if (table != null) {
+      NetworkTable perf = table.getSubTable("perf");
+      for (int i = 0; i < kNames.length; i++) {
+        m_p50[i] = perf.getEntry(kNames[i] + " p50");
+        m_p99[i] = perf.getEntry(kNames[i] + " p99");
+      }
+      m_fps = perf.getEntry("fps");
+      // Limelight-compatible pipeline latency in milliseconds
+      m_latency = table.getEntry("tl");
+      m_latency.setDefaultDouble(0.0);
+    }
+  }
+
+  /**
+   * Record the time one stage took.
+   * @param stage the stage, e.g. {@link #kResize}
+   * @param nanos the elapsed time from System.nanoTime
+   */
+  public void record(int stage, long nanos) {
+    m_stages[stage].record(nanos);
+  }
+
+  /**
+   * Drop everything recorded so far and start a new window.
+   * Must only be called while no frames are being processed.
+   */
+  public void reset() {
+    for (int i = 0; i < kNames.length; i++) {
+      m_stages[i].reset();
+    }
+    m_windowStart = System.nanoTime();
+    m_windowFrames = 0;
+  }
+
+  /**
+   * Record a finished frame and publish the window if it is over.
+   * Must only be called from the thread that publishes results.
+   * @param totalNanos the time from the start of processing to the end of publishing
+   */
+  public void frameDone(long totalNanos) {
+    m_stages[kTotal].record(totalNanos);
+    m_windowFrames++;
+    if (m_latency != null) {
+      m_latency.setDouble(totalNanos / 1e6);
+    }
+
+    long now = System.nanoTime();
+    long elapsed = now - m_windowStart;
+    if (elapsed < kWindowNanos) {
+      return;
+    }
+
+    if (m_fps != null) {
+      m_fps.setDouble(m_windowFrames * 1e9 / elapsed);
+      for (int i = 0; i < kNames.length; i++) {
+        m_p50[i].setDouble(m_stages[i].percentile(50));
+        m_p99[i].setDouble(m_stages[i].percentile(99));
+      }
+    }
+    for (int i = 0; i < kNames.length; i++) {
+      m_stages[i].reset();
+    }
+    m_windowStart = now;
+    m_windowFrames = 0;
+  }
+}
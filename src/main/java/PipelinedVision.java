@@ -0,0 +1,234 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import edu.wpi.cscore.VideoSource;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+
+/**
+ * Runs MyPipeline as four stages on their own threads:
+ * capture, resize+threshold, contours+filter and publish.
+ *
+ * <p>Frames are handed from stage to stage through bounded queues over a fixed
+ * set of preallocated frame buffers. Capture blocks when every buffer is in
+ * flight, so latency stays bounded by the buffer count while each stage can
+ * work on a different frame at the same time.
+ */
+public final class PipelinedVision {
+  /**
+   * A reusable frame buffer holding everything one frame needs between stages.
+   */
+  private static final class Frame {
+    final Mat source = new Mat();
+    final Mat resized = new Mat();
+    final Mat mask = new Mat();
+    final Rect searchArea = new Rect();
+    final Rect thresholdArea = new Rect();
+    final ArrayList<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+    final ArrayList<MatOfPoint> filtered = new ArrayList<MatOfPoint>();
+    final TargetRanker.Targets targets = new TargetRanker.Targets();
+    // The profile's pipeline chosen when the frame entered the threshold stage
+    Main.MyPipeline pipeline;
+    // That pipeline's settings snapshot, used by every stage of this frame
+    VisionSettings settings;
+    // Publish an empty result instead of processing, for a profile that only streams
+    boolean noTarget;
+    long captureTime;
+    long startTime;
+  }
+
+  private final FrameGrabber m_grabber;
+  private final ProfileSelector m_profiles;
+
+  private final BlockingQueue<Frame> m_free;
+  private final BlockingQueue<Frame> m_toThreshold;
+  private final BlockingQueue<Frame> m_toDetect;
+  private final BlockingQueue<Frame> m_toPublish;
+
+  private NetworkTableEntry m_thresholdDepth;
+  private NetworkTableEntry m_detectDepth;
+  private NetworkTableEntry m_publishDepth;
+  private NetworkTableEntry m_freeBuffers;
+
+  private final List<Thread> m_threads = new ArrayList<>();
+
+  /**
+   * Create a pipelined runner.
+   * @param camera the video source to process
+   * @param profiles the profiles whose active pipeline's stages are run
+   * @param buffers the number of frames that may be in flight at once
+   * @param table the pipeline's table, to publish capture counts under, or null
+   */
+  public PipelinedVision(VideoSource camera, ProfileSelector profiles, int buffers, NetworkTable table) {
+    m_grabber = new FrameGrabber(camera, table);
+    m_profiles = profiles;
+
+    m_free = new ArrayBlockingQueue<>(buffers);
+    m_toThreshold = new ArrayBlockingQueue<>(buffers);
+    m_toDetect = new ArrayBlockingQueue<>(buffers);
+    m_toPublish = new ArrayBlockingQueue<>(buffers);
+    for (int i = 0; i < buffers; i++) {
+      m_free.add(new Frame());
+    }
+
+    NetworkTable queues = NetworkTableInstance.getDefault().getTable("Pi Vision/pipeline");
+    m_thresholdDepth = queues.getEntry("threshold queue");
+    m_detectDepth = queues.getEntry("detect queue");
+    m_publishDepth = queues.getEntry("publish queue");
+    m_freeBuffers = queues.getEntry("free buffers");
+  }
+
+  /**
+   * Start all stage threads.
+   */
+  public void start() {
+    startStage("capture", this::capture);
+    startStage("threshold", this::threshold);
+    startStage("detect", this::detect);
+    startStage("publish", this::publish);
+  }
+
+  /**
+   * Stop all stage threads and release the camera's sink.
+   * Frames still in flight are dropped.
+   */
+  public void stop() {
+    for (Thread thread : m_threads) {
+      thread.interrupt();
+    }
+    for (Thread thread : m_threads) {
+      try {
+        thread.join(1000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    m_threads.clear();
+
+    // frees the sink's name too, in case the camera is added again
+    m_grabber.close();
+  }
+
+  private void startStage(String name, Runnable body) {
+    Thread thread = new Thread(() -> {
+      try {
+        while (!Thread.interrupted()) {
+          body.run();
+        }
+      } catch (StageInterrupted ex) {
+        // exit quietly
+      }
+    }, "Vision " + name);
+    thread.setDaemon(true);
+    thread.start();
+    m_threads.add(thread);
+  }
+
+  private void capture() {
+    Frame frame = take(m_free);
+    frame.captureTime = m_grabber.grab(frame.source);
+    if (frame.captureTime == 0) {
+      // a timeout is counted and reported by the grabber
+      put(m_free, frame);
+      return;
+    }
+    frame.startTime = System.nanoTime();
+    put(m_toThreshold, frame);
+  }
+
+  private void threshold() {
+    Frame frame = take(m_toThreshold);
+
+    // Newest frame wins: when frames have queued up behind a slow stage,
+    // skip straight to the latest and hand the older buffers back to capture
+    int dropped = 0;
+    for (Frame newer = m_toThreshold.poll(); newer != null; newer = m_toThreshold.poll()) {
+      put(m_free, frame);
+      frame = newer;
+      dropped++;
+    }
+    // A frame stays with one profile's pipeline, even if the profile is switched meanwhile
+    Main.MyPipeline pipeline = m_profiles.active();
+    LoadGovernor governor = pipeline.loadGovernor();
+    if (dropped > 0 && governor != null) {
+      governor.framesDropped(dropped);
+    }
+    frame.pipeline = pipeline;
+    frame.noTarget = !pipeline.visionEnabled();
+    if (frame.noTarget) {
+      // The empty result goes through the stages, so it is published after the frames still in flight
+      if (pipeline.takeNoTarget()) {
+        put(m_toDetect, frame);
+      } else {
+        put(m_free, frame);
+      }
+      return;
+    }
+
+    frame.settings = pipeline.settings();
+    pipeline.preprocess(frame.source, frame.resized, frame.mask, frame.searchArea, frame.thresholdArea,
+        frame.settings);
+    put(m_toDetect, frame);
+  }
+
+  private void detect() {
+    Frame frame = take(m_toDetect);
+    if (frame.noTarget) {
+      put(m_toPublish, frame);
+      return;
+    }
+    frame.pipeline.detect(frame.mask, frame.searchArea, frame.thresholdArea, frame.contours, frame.filtered,
+        frame.targets, frame.settings);
+    put(m_toPublish, frame);
+  }
+
+  private void publish() {
+    Frame frame = take(m_toPublish);
+    if (frame.noTarget) {
+      frame.pipeline.publishNoTarget(frame.targets, frame.startTime, frame.captureTime);
+    } else {
+      frame.pipeline.publishTargetInfo(frame.targets, frame.mask.cols(), frame.mask.rows(), frame.settings,
+          frame.startTime, frame.captureTime);
+      frame.pipeline.offerDebugFrame(frame.resized, frame.mask, frame.filtered, frame.targets);
+      frame.pipeline.recordFrame(frame.resized, frame.targets, frame.captureTime);
+    }
+
+    m_thresholdDepth.setNumber(m_toThreshold.size());
+    m_detectDepth.setNumber(m_toDetect.size());
+    m_publishDepth.setNumber(m_toPublish.size());
+    m_freeBuffers.setNumber(m_free.size());
+
+    put(m_free, frame);
+  }
+
+  /**
+   * Unchecked wrapper so stage bodies can be plain Runnables.
+   */
+  private static final class StageInterrupted extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static Frame take(BlockingQueue<Frame> queue) {
+    try {
+      return queue.take();
+    } catch (InterruptedException ex) {
+      throw new StageInterrupted();
+    }
+  }
+
+  private static void put(BlockingQueue<Frame> queue, Frame frame) {
+    try {
+      queue.put(frame);
+    } catch (InterruptedException ex) {
+      throw new StageInterrupted();
+    }
+  }
+}
@@ -0,0 +1,162 @@
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point3;
+
+/**
+ * Estimates the camera's pose relative to the power port target with solvePnP.
+ *
+ * <p>The four outer corners of the target's tape are taken straight from the
+ * contour's points, as the extremes along the two diagonals, so no further
+ * image passes are needed. The camera intrinsics come from the lens
+ * calibration when there is one, which also corrects the corners for lens
+ * distortion. Otherwise they are derived from the field of view and cached
+ * until the image size or the field of view changes.
+ *
+ * <p>The target frame has x to the right, y down and z into the wall, with
+ * its origin at the middle of the top edge, the same axes as the camera frame.
+ * Lengths are in inches.
+ *
+ * <p>Holds scratch buffers, so only one thread may estimate at a time.
+ */
+public final class PoseEstimator {
+  // 2020 power port tape, outer edges: 39.25 in wide at the top, 19.625 in at the bottom, 17 in tall
+  private static final double kTopWidth = 39.25;
+  private static final double kBottomWidth = 19.625;
+  private static final double kHeight = 17.0;
+
+  /** Offsets of the results written by {@link #estimate}. */
+  public static final int kDistance = 0;
+  public static final int kYaw = 1;
+  public static final int kTranslationX = 2;
+  public static final int kTranslationY = 3;
+  public static final int kTranslationZ = 4;
+  public static final int kSize = 5;
+
+  private final MatOfPoint3f m_objectPoints;
+  private final MatOfPoint2f m_imagePoints = new MatOfPoint2f();
+  private final float[] m_corners = new float[8];
+  private int[] m_contourPoints = new int[256];
+
+  private final Mat m_cameraMatrix = Mat.zeros(3, 3, CvType.CV_64F);
+  private final MatOfDouble m_distCoeffs = new MatOfDouble(0, 0, 0, 0, 0);
+  private final double[] m_intrinsics = new double[9];
+  private int m_cachedWidth;
+  private int m_cachedHeight;
+  private double m_cachedHoriFOV;
+  private double m_cachedVertFOV;
+
+  private final Mat m_rvec = new Mat();
+  private final Mat m_tvec = new Mat();
+  private final Mat m_rotation = new Mat();
+  private final double[] m_rotationValues = new double[9];
+  private final double[] m_translationValues = new double[3];
+
+  public PoseEstimator() {
+    // top left, top right, bottom right, bottom left
+    m_objectPoints = new MatOfPoint3f(
+        new Point3(-kTopWidth / 2.0, 0.0, 0.0),
+        new Point3(kTopWidth / 2.0, 0.0, 0.0),
+        new Point3(kBottomWidth / 2.0, kHeight, 0.0),
+        new Point3(-kBottomWidth / 2.0, kHeight, 0.0));
+    m_imagePoints.alloc(4);
+  }
+
+  /**
+   * Estimate the pose from a target contour.
+   * @param contour the accepted target contour
+   * @param width the width of the image the contour was found in
+   * @param height the height of the image the contour was found in
+   * @param settings the settings holding the field of view
+   * @param calibration the lens calibration, or null to use the field of view
+   * @param out set to the results at the k* offsets: distance (in), the target's yaw
+   *     relative to the camera (deg, positive when the target faces to the camera's left)
+   *     and the target's position in the camera frame (in)
+   * @return false if the pose could not be solved
+   */
+  public boolean estimate(MatOfPoint contour, int width, int height, VisionSettings settings,
+      CameraCalibration calibration, double[] out) {
+    int count = contour.rows();
+    if (count < 4) {
+      return false;
+    }
+    if (m_contourPoints.length < count * 2) {
+      m_contourPoints = new int[count * 2];
+    }
+    final int[] pts = m_contourPoints;
+    contour.get(0, 0, pts);
+
+    // Outer corners of the trapezoid are the extremes along the diagonals
+    int topLeft = 0, topRight = 0, bottomRight = 0, bottomLeft = 0;
+    for (int j = 2; j < count * 2; j += 2) {
+      int sum = pts[j] + pts[j + 1];
+      int diff = pts[j] - pts[j + 1];
+      if (sum < pts[topLeft] + pts[topLeft + 1]) topLeft = j;
+      if (sum > pts[bottomRight] + pts[bottomRight + 1]) bottomRight = j;
+      if (diff > pts[topRight] - pts[topRight + 1]) topRight = j;
+      if (diff < pts[bottomLeft] - pts[bottomLeft + 1]) bottomLeft = j;
+    }
+    setCorner(0, pts, topLeft);
+    setCorner(1, pts, topRight);
+    setCorner(2, pts, bottomRight);
+    setCorner(3, pts, bottomLeft);
+    m_imagePoints.put(0, 0, m_corners);
+
+    Mat cameraMatrix;
+    MatOfDouble distCoeffs;
+    if (calibration != null) {
+      cameraMatrix = calibration.cameraMatrix(width, height);
+      distCoeffs = calibration.distCoeffs();
+    } else {
+      updateIntrinsics(width, height, settings);
+      cameraMatrix = m_cameraMatrix;
+      distCoeffs = m_distCoeffs;
+    }
+    if (!Calib3d.solvePnP(m_objectPoints, m_imagePoints, cameraMatrix, distCoeffs, m_rvec, m_tvec)) {
+      return false;
+    }
+
+    Calib3d.Rodrigues(m_rvec, m_rotation);
+    m_rotation.get(0, 0, m_rotationValues);
+    m_tvec.get(0, 0, m_translationValues);
+
+    double x = m_translationValues[0];
+    double y = m_translationValues[1];
+    double z = m_translationValues[2];
+    out[kDistance] = Math.sqrt(x * x + y * y + z * z);
+    // The target's z axis (into the wall) as seen from the camera
+    out[kYaw] = Math.toDegrees(Math.atan2(m_rotationValues[2], m_rotationValues[8]));
+    out[kTranslationX] = x;
+    out[kTranslationY] = y;
+    out[kTranslationZ] = z;
+    return true;
+  }
+
+  private void setCorner(int corner, int[] pts, int index) {
+    m_corners[corner * 2] = pts[index];
+    m_corners[corner * 2 + 1] = pts[index + 1];
+  }
+
+  private void updateIntrinsics(int width, int height, VisionSettings settings) {
+    if (width == m_cachedWidth && height == m_cachedHeight
+        && settings.horiFOV == m_cachedHoriFOV && settings.vertFOV == m_cachedVertFOV) {
+      return;
+    }
+    m_cachedWidth = width;
+    m_cachedHeight = height;
+    m_cachedHoriFOV = settings.horiFOV;
+    m_cachedVertFOV = settings.vertFOV;
+
+    // Pinhole model matching findAngleX/Y: the view plane at distance 1 spans the image
+    m_intrinsics[0] = width / settings.viewPlaneWidth;
+    m_intrinsics[2] = width / 2.0 - 0.5;
+    m_intrinsics[4] = height / settings.viewPlaneHeight;
+    m_intrinsics[5] = height / 2.0 - 0.5;
+    m_intrinsics[8] = 1.0;
+    m_cameraMatrix.put(0, 0, m_intrinsics);
+  }
+}
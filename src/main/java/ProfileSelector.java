@@ -0,0 +1,101 @@
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+ * Picks which of a camera's pipeline profiles processes the next frame.
+ *
+ * <p>Every profile has its own pipeline, built and warmed up before the
+ * camera starts, so a switch only changes which pipeline the runner hands
+ * the next frame to. The profile is chosen with the {@code profile} entry of
+ * the camera's table, like a switched camera's key: a number selects by index
+ * and a string by name. The name of the profile in use is published as
+ * {@code active profile}. A profile that only streams publishes one empty
+ * result each time it is selected, so no target from the last profile is left
+ * in the table.
+ */
+public final class ProfileSelector {
+  private final String[] m_names;
+  private final Main.MyPipeline[] m_pipelines;
+  private volatile int m_active;
+
+  private final NetworkTableEntry m_selectEntry;
+  private final NetworkTableEntry m_activeEntry;
+  private int m_listener;
+
+  /**
+   * Create a selector with the first profile active.
+   * @param names the profile names
+   * @param pipelines each profile's pipeline, in the same order
+   * @param table the camera's table to listen and publish under, or null to always use the first profile
+   */
+  public ProfileSelector(String[] names, Main.MyPipeline[] pipelines, NetworkTable table) {
+    m_names = names;
+    m_pipelines = pipelines;
+    if (table != null) {
+      m_selectEntry = table.getEntry("profile");
+      m_activeEntry = table.getEntry("active profile");
+    } else {
+      m_selectEntry = null;
+      m_activeEntry = null;
+    }
+  }
+
+  /**
+   * The pipeline of the profile in use.
+   */
+  public Main.MyPipeline active() {
+    return m_pipelines[m_active];
+  }
+
+  /**
+   * Every profile's pipeline.
+   */
+  public Main.MyPipeline[] pipelines() {
+    return m_pipelines;
+  }
+
+  /**
+   * Publish the active profile and start listening for selections.
+   */
+  public synchronized void start() {
+    if (m_selectEntry == null) {
+      return;
+    }
+    m_activeEntry.setString(m_names[m_active]);
+    m_listener = m_selectEntry.addListener(event -> {
+          if (event.value.isDouble()) {
+            select((int) event.value.getDouble());
+          } else if (event.value.isString()) {
+            String str = event.value.getString();
+            for (int i = 0; i < m_names.length; i++) {
+              if (str.equals(m_names[i])) {
+                select(i);
+                break;
+              }
+            }
+          }
+        },
+        EntryListenerFlags.kImmediate | EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+  }
+
+  /**
+   * Stop listening for selections.
+   */
+  public synchronized void stop() {
+    if (m_listener != 0) {
+      m_selectEntry.removeListener(m_listener);
+      m_listener = 0;
+    }
+  }
+
+  private void select(int index) {
+    if (index < 0 || index >= m_pipelines.length || index == m_active) {
+      return;
+    }
+    System.out.println("Switching to profile '" + m_names[index] + "' on " + m_selectEntry.getName());
+    m_pipelines[index].selected();
+    m_active = index;
+    m_activeEntry.setString(m_names[index]);
+  }
+}
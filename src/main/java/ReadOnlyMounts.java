@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Tells whether a path is on a read-only filesystem, as the rPi vision
+ * image's root filesystem is unless the dashboard's "Writable" tab is
+ * selected.
+ *
+ * <p>Only reads /proc/mounts. Nothing here remounts a filesystem, so the
+ * choice made on the dashboard is never undone behind the user's back.
+ */
+public final class ReadOnlyMounts {
+  private ReadOnlyMounts() {
+  }
+
+  /**
+   * Whether the filesystem holding a path is mounted read-only.
+   * @param file the file or directory, which need not exist yet
+   * @return false if it is writable or unknown
+   */
+  public static boolean isReadOnly(Path file) {
+    Path path = file.toAbsolutePath().normalize();
+    List<String> mounts;
+    try {
+      mounts = Files.readAllLines(Paths.get("/proc/mounts"));
+    } catch (IOException ex) {
+      return false;
+    }
+    String best = null;
+    boolean readOnly = false;
+    for (String line : mounts) {
+      // device, mount point, type, options, ...; spaces in the mount point are escaped as \040
+      String[] fields = line.split(" ");
+      if (fields.length < 4) {
+        continue;
+      }
+      String mount = fields[1].replace("\\040", " ");
+      if (path.startsWith(Paths.get(mount)) && (best == null || mount.length() >= best.length())) {
+        best = mount;
+        readOnly = fields[3].equals("ro") || fields[3].startsWith("ro,");
+      }
+    }
+    return readOnly;
+  }
+}
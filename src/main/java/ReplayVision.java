@@ -0,0 +1,136 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+
+/**
+ * Feeds recorded frames through MyPipeline without a camera or NetworkTables
+ * and reports throughput and per-frame latency.
+ *
+ * <p>The source is a directory of images (read in name order), a recording
+ * made by FrameRecorder or a video file that OpenCV can open. All frames are
+ * decoded up front so file I/O does not show up in the timings.
+ */
+public final class ReplayVision {
+  private ReplayVision() {
+  }
+
+  /**
+   * Load every frame from a directory of images, a recording or a video file.
+   * @param path the directory or file
+   * @return the decoded frames, empty if nothing could be read
+   */
+  public static List<Mat> loadFrames(String path) {
+    List<Mat> frames = new ArrayList<>();
+    File file = new File(path);
+
+    if (file.isDirectory()) {
+      File[] files = file.listFiles();
+      if (files == null) {
+        return frames;
+      }
+      Arrays.sort(files);
+      for (File image : files) {
+        Mat frame = Imgcodecs.imread(image.getPath());
+        if (!frame.empty()) {
+          frames.add(frame);
+        }
+      }
+      return frames;
+    }
+
+    if (FrameRecorder.isRecording(path)) {
+      int withTargets = 0;
+      for (FrameRecorder.Record record : FrameRecorder.read(path)) {
+        frames.add(record.image);
+        if (record.count > 0) {
+          withTargets++;
+        }
+      }
+      System.out.println("Recording: " + frames.size() + " frames, " + withTargets + " had targets when recorded");
+      return frames;
+    }
+
+    VideoCapture capture = new VideoCapture(path);
+    Mat frame = new Mat();
+    while (capture.read(frame)) {
+      frames.add(frame);
+      frame = new Mat();
+    }
+    capture.release();
+    return frames;
+  }
+
+  /**
+   * Replay frames through a fresh pipeline and print the results.
+   * @param path the directory of images or video file
+   * @param fps the rate to feed frames at, or 0 to run as fast as possible
+   * @param loops how many times to play the frames, at least 1
+   * @return false if no frames could be read
+   */
+  public static boolean run(String path, double fps, int loops) {
+    // Constructing the pipeline loads the OpenCV native library
+    Main.MyPipeline pipeline = new Main.MyPipeline(null);
+
+    List<Mat> frames = loadFrames(path);
+    if (frames.isEmpty()) {
+      System.err.println("replay: no frames could be read from '" + path + "'");
+      return false;
+    }
+    System.out.println("Replaying " + frames.size() + " frames from " + path
+        + (fps > 0 ? " at " + fps + " fps" : " as fast as possible") + ", " + loops + " loop(s)");
+
+    // Let the threshold table finish building so we time the steady state
+    pipeline.awaitWarm(5000);
+
+    long period = fps > 0 ? (long) (1e9 / fps) : 0;
+    long[] latency = new long[frames.size() * loops];
+    int count = 0;
+
+    long start = System.nanoTime();
+    long next = start;
+    for (int loop = 0; loop < loops; loop++) {
+      for (Mat frame : frames) {
+        if (period > 0) {
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            try {
+              Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException ex) {
+              return true;
+            }
+          }
+          next += period;
+        }
+
+        long t0 = System.nanoTime();
+        pipeline.process(frame);
+        latency[count++] = System.nanoTime() - t0;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latency, 0, count);
+    System.out.printf("frames: %d  fps: %.1f%n", count, count / (elapsed / 1e9));
+    System.out.printf("latency ms  p50: %.3f  p95: %.3f  p99: %.3f  max: %.3f%n",
+        percentile(latency, count, 50), percentile(latency, count, 95),
+        percentile(latency, count, 99), latency[count - 1] / 1e6);
+    if (pipeline.tracker() != null) {
+      long[] counts = pipeline.tracker().counts();
+      System.out.printf("tracking  hits: %d  misses: %d  refreshes: %d%n", counts[0], counts[1], counts[2]);
+    }
+    return true;
+  }
+
+  /**
+   * Nearest-rank percentile of sorted nanosecond samples, in milliseconds.
+   */
+  static double percentile(long[] sorted, int count, double pct) {
+    int rank = (int) Math.ceil(pct / 100.0 * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, rank))] / 1e6;
+  }
+}
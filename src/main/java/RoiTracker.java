@@ -0,0 +1,154 @@
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Chooses the part of the image to search on each frame.
+ *
+ * <p>After a frame with an accepted target, the next frame only searches a
+ * padded box around the best ranked one. The tracker falls back to the full
+ * frame when the target is lost, when it touches the edge of the search box,
+ * or every {@code refreshFrames} frames so new targets are not missed.
+ *
+ * <p>The search area is chosen by the threshold step and the result reported
+ * by the detect step, which may be on different threads in pipelined mode.
+ */
+public final class RoiTracker {
+  private final int m_padding;
+  private final int m_refreshFrames;
+
+  private boolean m_tracking;
+  private final Rect m_last = new Rect();
+  private int m_lastWidth;
+  private int m_lastHeight;
+  private int m_framesSinceFull;
+
+  private long m_hits;
+  private long m_misses;
+  private long m_refreshes;
+
+  private final NetworkTableEntry m_hitsEntry;
+  private final NetworkTableEntry m_missesEntry;
+  private final NetworkTableEntry m_refreshesEntry;
+
+  /**
+   * Create a tracker.
+   * @param padding pixels added on each side of the last target's bounding box
+   * @param refreshFrames force a full-frame search after this many ROI frames
+   * @param table the table to publish hit/miss/refresh counts under, or null to not publish
+   */
+  public RoiTracker(int padding, int refreshFrames, NetworkTable table) {
+    m_padding = padding;
+    m_refreshFrames = refreshFrames;
+
+    if (table != null) {
+      NetworkTable tracking = table.getSubTable("tracking");
+      m_hitsEntry = tracking.getEntry("hits");
+      m_missesEntry = tracking.getEntry("misses");
+      m_refreshesEntry = tracking.getEntry("refreshes");
+    } else {
+      m_hitsEntry = null;
+      m_missesEntry = null;
+      m_refreshesEntry = null;
+    }
+  }
+
+  /**
+   * Hit, miss and refresh counts so far.
+   */
+  public synchronized long[] counts() {
+    return new long[] {m_hits, m_misses, m_refreshes};
+  }
+
+  /**
+   * Pick the area to search in the next frame.
+   * @param width the image width
+   * @param height the image height
+   * @param searchArea set to the area to search
+   */
+  public synchronized void nextSearchArea(int width, int height, Rect searchArea) {
+    if (m_tracking && m_framesSinceFull >= m_refreshFrames) {
+      m_tracking = false;
+      m_refreshes++;
+      if (m_refreshesEntry != null) {
+        m_refreshesEntry.setDouble(m_refreshes);
+      }
+    }
+
+    // The last box is in another resolution's pixels, so search it all again
+    if (m_tracking && (width != m_lastWidth || height != m_lastHeight)) {
+      m_tracking = false;
+    }
+
+    if (!m_tracking) {
+      m_framesSinceFull = 0;
+      set(searchArea, 0, 0, width, height);
+      return;
+    }
+
+    m_framesSinceFull++;
+    int x0 = Math.max(0, m_last.x - m_padding);
+    int y0 = Math.max(0, m_last.y - m_padding);
+    int x1 = Math.min(width, m_last.x + m_last.width + m_padding);
+    int y1 = Math.min(height, m_last.y + m_last.height + m_padding);
+    set(searchArea, x0, y0, x1 - x0, y1 - y0);
+  }
+
+  /**
+   * Record the result of searching an area.
+   * @param searchArea the area that was searched
+   * @param width the image width
+   * @param height the image height
+   * @param target the best target found in that area, or null if there was none
+   */
+  public synchronized void update(Rect searchArea, int width, int height, MatOfPoint target) {
+    boolean roiSearch = searchArea.width < width || searchArea.height < height;
+    if (target == null) {
+      lost(roiSearch);
+      return;
+    }
+
+    Rect bb = Imgproc.boundingRect(target);
+
+    // A target clipped by the search box may be larger than we saw
+    if (roiSearch
+        && ((bb.x <= searchArea.x && searchArea.x > 0)
+          || (bb.y <= searchArea.y && searchArea.y > 0)
+          || (bb.x + bb.width >= searchArea.x + searchArea.width && searchArea.x + searchArea.width < width)
+          || (bb.y + bb.height >= searchArea.y + searchArea.height && searchArea.y + searchArea.height < height))) {
+      lost(roiSearch);
+      return;
+    }
+
+    if (roiSearch) {
+      m_hits++;
+      if (m_hitsEntry != null) {
+        m_hitsEntry.setDouble(m_hits);
+      }
+    }
+    set(m_last, bb.x, bb.y, bb.width, bb.height);
+    m_lastWidth = width;
+    m_lastHeight = height;
+    m_tracking = true;
+  }
+
+  private void lost(boolean roiSearch) {
+    if (roiSearch) {
+      m_misses++;
+      if (m_missesEntry != null) {
+        m_missesEntry.setDouble(m_misses);
+      }
+    }
+    m_tracking = false;
+  }
+
+  private static void set(Rect rect, int x, int y, int width, int height) {
+    rect.x = x;
+    rect.y = y;
+    rect.width = width;
+    rect.height = height;
+  }
+}
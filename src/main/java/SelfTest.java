@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the parts of the vision code that need no camera, NetworkTables or
+ * OpenCV native library, so they can run on any desktop.
+ *
+ * <p>Config reload is checked by writing config files to a temporary
+ * directory, reading them with Main.readConfig and comparing them with
+ * ConfigReloader.diffCameras, as a reload does before it touches a camera.
+ * Persisted vision settings are loaded from a temporary file with bad values
+ * in it, which must be skipped one key at a time.
+ *
+ * <p>UDP results are sent over localhost, from UdpPublisher to a plain
+ * socket to check the packet layout, and to UdpResultReceiver to check that
+ * late packets are dropped and a restarted sender is picked up again.
+ */
+public final class SelfTest {
+  private static final String kBase = "{'team': 2020, 'bands': 2, 'cameras': ["
+      + "{'name': 'front', 'path': '/dev/video0', 'brightness': 30},"
+      + "{'name': 'rear', 'path': '/dev/video1', 'vision': true}]}";
+
+  // How long to wait for a packet that should arrive, and for one that should be ignored
+  private static final long kReceiveTimeoutMs = 2000;
+  private static final long kIgnoreWaitMs = 200;
+
+  private static int s_checks;
+  private static int s_failures;
+
+  private SelfTest() {
+  }
+
+  /**
+   * Run every check and print the failures.
+   * @return false if any check failed
+   */
+  public static boolean run() {
+    s_checks = 0;
+    s_failures = 0;
+    try {
+      checkConfigReload();
+    } catch (IOException ex) {
+      fail("could not write a temporary config file: " + ex);
+    }
+    try {
+      checkTunedSettings();
+    } catch (IOException ex) {
+      fail("could not write a temporary vision settings file: " + ex);
+    }
+    try {
+      checkUdpLayout();
+      checkUdpReceiver();
+    } catch (IOException ex) {
+      fail("could not use a localhost udp port: " + ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      fail("interrupted");
+    }
+
+    if (s_failures == 0) {
+      System.out.println("All " + s_checks + " self-test checks passed");
+    } else {
+      System.out.println(s_failures + " of " + s_checks + " self-test checks failed");
+    }
+    return s_failures == 0;
+  }
+
+  private static void checkConfigReload() throws IOException {
+    Path dir = Files.createTempDirectory("pivision-config");
+    String configFile = Main.configFile;
+    try {
+      Main.Config base = readConfig(dir, kBase);
+      check(base != null, "base config reads");
+      if (base == null) {
+        return;
+      }
+      check(base.cameras.get(0).vision && base.cameras.get(1).vision, "vision cameras");
+      check("Pi Vision".equals(base.cameras.get(0).table), "first vision camera publishes to 'Pi Vision'");
+      check("Pi Vision/rear".equals(base.cameras.get(1).table), "second vision camera publishes to 'Pi Vision/rear'");
+
+      ConfigReloader.CameraDiff diff = diff(base, readConfig(dir, kBase));
+      check(diff != null && diff.isEmpty(), "unchanged file: no camera changes");
+      check(ConfigReloader.changedVisionKey(base.json, base.json) == null, "unchanged file: vision keeps running");
+
+      diff = diff(base, readConfig(dir, kBase.replace("/dev/video1", "/dev/video2")));
+      check(diff != null && names(diff.restarted).equals(Arrays.asList("rear"))
+          && diff.reconfigured.isEmpty() && diff.revisioned.isEmpty(), "new path: camera restarted");
+
+      diff = diff(base, readConfig(dir, kBase.replace("'brightness': 30", "'brightness': 60")));
+      check(diff != null && names(diff.reconfigured).equals(Arrays.asList("front"))
+          && diff.restarted.isEmpty() && diff.revisioned.isEmpty(), "new brightness: camera reconfigured");
+
+      diff = diff(base, readConfig(dir, kBase.replace("'brightness': 30",
+          "'brightness': 30, 'stream': {'properties': [{'name': 'compression', 'value': 50}]}")));
+      check(diff != null && names(diff.restreamed).equals(Arrays.asList("front"))
+          && diff.reconfigured.isEmpty() && diff.revisioned.isEmpty(), "new stream settings: stream reconfigured");
+
+      diff = diff(base, readConfig(dir, kBase.replace("'vision': true", "'vision': true, 'udp': {}")));
+      check(diff != null && names(diff.revisioned).equals(Arrays.asList("rear"))
+          && diff.reconfigured.isEmpty(), "udp added: vision restarted");
+
+      diff = diff(base, readConfig(dir, kBase.replace("'vision': true", "'vision': false")));
+      check(diff != null && names(diff.revisioned).equals(Arrays.asList("rear")),
+          "vision turned off: vision restarted");
+
+      diff = diff(base, readConfig(dir, kBase.replace("'rear'", "'side'")));
+      check(diff != null && names(diff.added).equals(Arrays.asList("side"))
+          && names(diff.removed).equals(Arrays.asList("rear")), "renamed camera: added and removed");
+
+      Main.Config next = readConfig(dir, kBase.replace("'bands': 2, ", ""));
+      check(next != null && next.bands == 1, "removed key: back to its default");
+      check(next != null && "bands".equals(ConfigReloader.changedVisionKey(base.json, next.json)),
+          "removed key: vision restarted");
+
+      next = readConfig(dir, kBase.replace("'bands': 2", "'bands': 2, 'detector': 'components'"));
+      check(next != null && next.componentDetection
+          && "detector".equals(ConfigReloader.changedVisionKey(base.json, next.json)), "added key: vision restarted");
+
+      next = readConfig(dir, kBase.replace("'team': 2020", "'team': 2020, 'profiles': [{'name': 'drive'}]"));
+      check(next != null && next.profiles.size() == 1
+          && "profiles".equals(ConfigReloader.changedVisionKey(base.json, next.json)),
+          "new profiles: vision restarted");
+
+      check(readConfig(dir, kBase.replace("'bands': 2", "'bands': 'two'")) == null, "wrong value type: not applied");
+      check(readConfig(dir, kBase.substring(0, kBase.length() - 3)) == null, "truncated file: not applied");
+      check(readConfig(dir, kBase.replace("'team': 2020",
+          "'team': 2020, 'profiles': [{'name': 'a'}, {'name': 'a'}]")) == null, "duplicate profile: not applied");
+    } finally {
+      Main.configFile = configFile;
+      Files.deleteIfExists(dir.resolve("frc.json"));
+      Files.delete(dir);
+    }
+  }
+
+  private static void checkTunedSettings() throws IOException {
+    Path file = Files.createTempFile("vision-settings", ".json");
+    try {
+      Files.write(file, ("{'Pi Vision': {'HsvThresholdHue': 'red', 'HsvThresholdSaturation': [10, 200],"
+          + " 'FilterContoursMinArea': 42, 'FilterContoursMinWidth': {'x': 1}}}").replace('\'', '"')
+          .getBytes("UTF-8"));
+      VisionSettings defaults = VisionSettings.defaults();
+      VisionSettings[] applied = new VisionSettings[1];
+      new VisionTuner(file.toString(), "Pi Vision", defaults, settings -> applied[0] = settings);
+      VisionSettings loaded = applied[0];
+      check(loaded != null, "tuned settings with bad values still load");
+      if (loaded == null) {
+        return;
+      }
+      check(Arrays.equals(loaded.get(VisionSettings.kHsvThresholdHue), defaults.get(VisionSettings.kHsvThresholdHue)),
+          "tuned setting with a string value is skipped");
+      check(Arrays.equals(loaded.get(VisionSettings.kHsvThresholdSaturation), new double[] {10, 200}),
+          "tuned range is loaded next to a bad value");
+      check(Arrays.equals(loaded.get(VisionSettings.kFilterContoursMinArea), new double[] {42}),
+          "tuned setting saved as a plain number is loaded");
+      check(Arrays.equals(loaded.get(VisionSettings.kFilterContoursMinWidth),
+          defaults.get(VisionSettings.kFilterContoursMinWidth)), "tuned setting with an object value is skipped");
+    } finally {
+      Files.delete(file);
+    }
+
+    // changes made while the rPi is read-only are kept in /tmp under the same name
+    Path dir = Files.createTempDirectory("vision-settings");
+    Path saved = dir.resolve(dir.getFileName() + ".json");
+    Path copy = Paths.get("/tmp", saved.getFileName().toString());
+    try {
+      Files.write(saved, "{\"Pi Vision\": {\"FilterContoursMinArea\": [10]}}".getBytes("UTF-8"));
+      Files.write(copy, "{\"Pi Vision\": {\"FilterContoursMinArea\": [20]}}".getBytes("UTF-8"));
+      VisionSettings[] applied = new VisionSettings[1];
+      new VisionTuner(saved.toString(), "Pi Vision", VisionSettings.defaults(), settings -> applied[0] = settings);
+      check(Arrays.equals(applied[0].get(VisionSettings.kFilterContoursMinArea), new double[] {20}),
+          "tuned settings kept in /tmp are loaded over the older file");
+    } finally {
+      Files.deleteIfExists(copy);
+      Files.delete(saved);
+      Files.delete(dir);
+    }
+  }
+
+  /**
+   * Send results with UdpPublisher and check every field against the layout it documents.
+   */
+  private static void checkUdpLayout() throws IOException {
+    try (DatagramChannel socket = DatagramChannel.open()) {
+      socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      socket.socket().setSoTimeout((int) kReceiveTimeoutMs);
+      int port = ((InetSocketAddress) socket.getLocalAddress()).getPort();
+      UdpPublisher publisher = new UdpPublisher("127.0.0.1", port, null);
+      byte[] bytes = new byte[UdpPublisher.kPacketBytes + 16];
+      DatagramPacket received = new DatagramPacket(bytes, bytes.length);
+      try {
+        for (long sequence = 1; sequence <= 2; sequence++) {
+          publisher.send(123456789L * sequence, 3, 160.5, 120.25, -0.5, 0.25, 12.5, -3.75);
+          socket.socket().receive(received);
+          ByteBuffer packet = ByteBuffer.wrap(bytes, 0, received.getLength());
+          check(received.getLength() == 72, "udp packet is 72 bytes");
+          check(packet.getInt(0) == UdpPublisher.kMagic, "udp magic at 0");
+          check(packet.getLong(4) == sequence, "udp sequence at 4, counting from 1");
+          check(packet.getLong(12) == 123456789L * sequence, "udp capture time at 12");
+          check(packet.getInt(20) == 3, "udp target count at 20");
+          check(packet.getDouble(24) == 160.5 && packet.getDouble(32) == 120.25, "udp center at 24 and 32");
+          check(packet.getDouble(40) == -0.5 && packet.getDouble(48) == 0.25, "udp offset at 40 and 48");
+          check(packet.getDouble(56) == 12.5 && packet.getDouble(64) == -3.75, "udp angles at 56 and 64");
+        }
+      } catch (SocketTimeoutException ex) {
+        fail("no udp packet from UdpPublisher within " + kReceiveTimeoutMs + " ms");
+      } finally {
+        publisher.close();
+      }
+    }
+  }
+
+  /**
+   * Send packets with chosen sequence numbers to UdpResultReceiver and check which it keeps.
+   */
+  private static void checkUdpReceiver() throws IOException, InterruptedException {
+    int port;
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      probe.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      port = ((InetSocketAddress) probe.getLocalAddress()).getPort();
+    }
+    UdpResultReceiver receiver = new UdpResultReceiver(port);
+    receiver.start();
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    try (DatagramChannel sender = DatagramChannel.open()) {
+      UdpPublisher publisher = new UdpPublisher("127.0.0.1", port, null);
+      publisher.send(42L, 2, 10.0, 20.0, 0.1, 0.2, 3.0, 4.0);
+      publisher.close();
+      UdpResultReceiver.Result result = await(receiver, 1);
+      check(result != null && result.captureTime == 42L && result.count == 2 && result.centerX == 10.0
+          && result.centerY == 20.0 && result.offsetX == 0.1 && result.offsetY == 0.2 && result.angleX == 3.0
+          && result.angleY == 4.0, "udp round trip keeps every field");
+
+      sender.send(packet(10, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      check(await(receiver, 10) != null, "newer udp packet is kept");
+      sender.send(packet(5, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      check(staysAt(receiver, 10), "late udp packet is dropped");
+      sender.send(packet(11, 0x12345678, UdpPublisher.kPacketBytes), address);
+      check(staysAt(receiver, 10), "udp packet with the wrong magic is dropped");
+      sender.send(packet(11, UdpPublisher.kMagic, UdpPublisher.kPacketBytes - 8), address);
+      check(staysAt(receiver, 10), "short udp packet is dropped");
+
+      sender.send(packet(500, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      check(await(receiver, 500) != null, "udp packet far ahead is kept");
+      sender.send(packet(400, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      check(staysAt(receiver, 500), "udp packet exactly the restart gap (100) behind is dropped as late");
+      sender.send(packet(399, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      check(await(receiver, 399) != null, "udp packet more than the restart gap behind is kept as a restart");
+
+      // a restarted coprocessor counts from 1 again
+      sender.send(packet(1000, UdpPublisher.kMagic, UdpPublisher.kPacketBytes), address);
+      await(receiver, 1000);
+      publisher = new UdpPublisher("127.0.0.1", port, null);
+      publisher.send(0L, 0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0);
+      publisher.close();
+      result = await(receiver, 1);
+      check(result != null && result.count == 0, "restarted UdpPublisher is picked up");
+    } finally {
+      receiver.close();
+    }
+  }
+
+  /**
+   * A packet in UdpPublisher's layout, with the rest of the fields zero.
+   */
+  private static ByteBuffer packet(long sequence, int magic, int length) {
+    ByteBuffer packet = ByteBuffer.allocate(length);
+    packet.putInt(0, magic);
+    packet.putLong(4, sequence);
+    return packet;
+  }
+
+  /**
+   * Wait for the receiver's newest result to have a sequence number.
+   * @return the result, or null if it did not arrive in time
+   */
+  private static UdpResultReceiver.Result await(UdpResultReceiver receiver, long sequence)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + kReceiveTimeoutMs * 1_000_000L;
+    while (System.nanoTime() < deadline) {
+      UdpResultReceiver.Result result = receiver.latest();
+      if (result != null && result.sequence == sequence) {
+        return result;
+      }
+      Thread.sleep(1);
+    }
+    return null;
+  }
+
+  /**
+   * Whether the receiver's newest result still has a sequence number after a packet had time to arrive.
+   */
+  private static boolean staysAt(UdpResultReceiver receiver, long sequence) throws InterruptedException {
+    Thread.sleep(kIgnoreWaitMs);
+    UdpResultReceiver.Result result = receiver.latest();
+    return result != null && result.sequence == sequence;
+  }
+
+  /**
+   * Write a config file, with ' for ", and read it as a reload would.
+   */
+  private static Main.Config readConfig(Path dir, String json) throws IOException {
+    Path file = dir.resolve("frc.json");
+    Files.write(file, json.replace('\'', '"').getBytes("UTF-8"));
+    Main.configFile = file.toString();
+    return Main.readConfig();
+  }
+
+  private static ConfigReloader.CameraDiff diff(Main.Config old, Main.Config next) {
+    return next == null ? null : ConfigReloader.diffCameras(old.cameras, next.cameras);
+  }
+
+  private static List<String> names(List<Main.CameraConfig> configs) {
+    List<String> names = new ArrayList<>();
+    for (Main.CameraConfig config : configs) {
+      names.add(config.name);
+    }
+    return names;
+  }
+
+  private static void check(boolean ok, String what) {
+    s_checks++;
+    if (!ok) {
+      fail(what);
+    }
+  }
+
+  private static void fail(String what) {
+    s_failures++;
+    System.out.println("FAILED: " + what);
+  }
+}
@@ -0,0 +1,683 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Times each MyPipeline stage on its own, on synthetic 2020 power port frames
+ * and optionally on recorded frames.
+ *
+ * <p>Each stage is warmed up and then run for a fixed time over the prepared
+ * inputs. The report gives ops/s, time per op and Java heap bytes allocated
+ * per op (from the thread allocation counter, so native Mat memory is not
+ * included).
+ *
+ * <p>The full-frame and coarse-to-fine detection modes, and the contour and
+ * connected-components detectors, are also run side by side on every frame,
+ * and any frame where their accepted targets differ is reported.
+ *
+ * <p>Before timing, filterContours is checked against the filter it
+ * replaced, the lookup table threshold against cvtColor + inRange on every
+ * frame and on every BGR color, and the components detector's prefilter
+ * against the filter. Any difference fails the run.
+ *
+ * <p>Banded resize and threshold are timed against single-pass ones at both
+ * resolutions, and any frame where their images or masks differ is reported.
+ */
+public final class StageBenchmark {
+  private static final long kWarmupNanos = 1_000_000_000L;
+  private static final long kMeasureNanos = 3_000_000_000L;
+  private static final int kSyntheticFrames = 16;
+
+  private StageBenchmark() {
+  }
+
+  /**
+   * Run every stage benchmark and print the results.
+   * @param path a directory of images or video file to add recorded frames from, or null
+   * @return false if an optimized stage gave a different result than the code it replaced
+   */
+  public static boolean run(String path) {
+    // Constructing the pipeline loads the OpenCV native library
+    Main.MyPipeline pipeline = new Main.MyPipeline(null);
+    pipeline.awaitWarm(10000);
+
+    List<Mat> frames = syntheticFrames(kSyntheticFrames, new Random(2020));
+    System.out.println("Synthetic frames: " + frames.size());
+    int failures = 0;
+    failures += checkFilterContours(pipeline, frames);
+    failures += checkThresholdTable(pipeline, frames);
+    failures += checkThresholdTableColors();
+    failures += checkFindComponents(pipeline, frames);
+    benchmarkStages(pipeline, frames);
+    compareDetectionModes(frames);
+    compareDetectors(frames);
+    compareBands(frames);
+
+    if (path != null) {
+      List<Mat> recorded = ReplayVision.loadFrames(path);
+      if (recorded.isEmpty()) {
+        System.err.println("bench: no frames could be read from '" + path + "'");
+      } else {
+        System.out.println("Recorded frames: " + recorded.size() + " from " + path);
+        failures += checkFilterContours(pipeline, recorded);
+        failures += checkThresholdTable(pipeline, recorded);
+        failures += checkFindComponents(pipeline, recorded);
+        benchmarkStages(pipeline, recorded);
+        compareDetectionModes(recorded);
+        compareDetectors(recorded);
+        compareBands(recorded);
+      }
+    }
+
+    if (failures == 0) {
+      System.out.println("All exactness checks passed");
+    } else {
+      System.out.println(failures + " exactness checks failed");
+    }
+    return failures == 0;
+  }
+
+  /**
+   * Check that filterContours keeps exactly the contours the original
+   * boundingRect/contourArea/arcLength/convexHull filter keeps. Every frame's
+   * contours are filtered with the default limits, with no limits, and one by
+   * one with each limit set to that contour's own reference value, where a
+   * result that differs in the last bit would flip the decision.
+   * @return the number of frames where the filters disagree
+   */
+  private static int checkFilterContours(Main.MyPipeline pipeline, List<Mat> frames) {
+    VisionSettings defaults = VisionSettings.defaults();
+    VisionSettings open = limits(defaults, 0, 0, 0, 0, 0, 100, 0, 0);
+    Mat resized = new Mat();
+    Mat mask = new Mat();
+    List<MatOfPoint> contours = new ArrayList<>();
+    List<MatOfPoint> single = new ArrayList<>();
+    List<MatOfPoint> expected = new ArrayList<>();
+    List<MatOfPoint> actual = new ArrayList<>();
+    int contourCount = 0;
+    int mismatches = 0;
+    for (int i = 0; i < frames.size(); i++) {
+      pipeline.resizeStage(frames.get(i), resized);
+      pipeline.hsvThresholdStage(resized, mask);
+      pipeline.findContoursStage(mask, false, contours);
+      contourCount += contours.size();
+
+      String difference = null;
+      for (VisionSettings settings : Arrays.asList(defaults, open)) {
+        referenceFilterContours(contours, settings, expected);
+        pipeline.filterContoursStage(contours, actual, settings, 1.0);
+        if (!expected.equals(actual) && difference == null) {
+          difference = "kept " + actual.size() + " contours instead of " + expected.size();
+        }
+      }
+
+      for (int j = 0; j < contours.size() && difference == null; j++) {
+        MatOfPoint contour = contours.get(j);
+        Rect bb = Imgproc.boundingRect(contour);
+        double area = Imgproc.contourArea(contour);
+        MatOfPoint2f points = new MatOfPoint2f(contour.toArray());
+        double perimeter = Imgproc.arcLength(points, true);
+        points.release();
+        double solid = 100 * area / referenceHullArea(contour);
+        VisionSettings settings = limits(defaults, area, perimeter, bb.width, bb.height, solid, solid,
+            contour.rows(), bb.width / (double) bb.height);
+        single.clear();
+        single.add(contour);
+        referenceFilterContours(single, settings, expected);
+        pipeline.filterContoursStage(single, actual, settings, 1.0);
+        if (!expected.equals(actual)) {
+          difference = "contour at " + bb + " is " + (actual.isEmpty() ? "dropped" : "kept")
+              + " at its own limits";
+        }
+      }
+
+      if (difference != null) {
+        mismatches++;
+        System.out.println("  frame " + i + ": filterContours differs from the reference filter, " + difference);
+      }
+    }
+    resized.release();
+    mask.release();
+    System.out.println("  filterContours matches the reference filter on " + (frames.size() - mismatches)
+        + " of " + frames.size() + " frames (" + contourCount + " contours)");
+    return mismatches;
+  }
+
+  /**
+   * Check that the components detector never skips a blob the filter would keep.
+   * Every blob it traces with no limits is traced again with each limit set to
+   * that blob's own contour's value, on every frame's mask and on a hollow
+   * rectangle, whose contour encloses far more than its pixels.
+   * @return the number of masks where a blob the filter keeps was skipped
+   */
+  private static int checkFindComponents(Main.MyPipeline pipeline, List<Mat> frames) {
+    VisionSettings defaults = VisionSettings.defaults();
+    VisionSettings open = limits(defaults, 0, 0, 0, 0, 0, 100, 0, 0);
+    List<Mat> masks = new ArrayList<>();
+    Mat resized = new Mat();
+    for (Mat frame : frames) {
+      Mat mask = new Mat();
+      pipeline.resizeStage(frame, resized);
+      pipeline.hsvThresholdStage(resized, mask);
+      masks.add(mask);
+    }
+    resized.release();
+    Mat hollow = Mat.zeros(masks.get(0).size(), CvType.CV_8UC1);
+    Imgproc.rectangle(hollow, new Point(100, 80), new Point(220, 160), new Scalar(255), 3);
+    masks.add(hollow);
+
+    List<MatOfPoint> all = new ArrayList<>();
+    List<MatOfPoint> traced = new ArrayList<>();
+    List<MatOfPoint> kept = new ArrayList<>();
+    int blobCount = 0;
+    int mismatches = 0;
+    for (int i = 0; i < masks.size(); i++) {
+      Mat mask = masks.get(i);
+      pipeline.findComponentsStage(mask, open, all);
+      blobCount += all.size();
+      String difference = null;
+      for (int j = 0; j < all.size() && difference == null; j++) {
+        MatOfPoint contour = all.get(j);
+        Rect bb = Imgproc.boundingRect(contour);
+        double area = Imgproc.contourArea(contour);
+        MatOfPoint2f points = new MatOfPoint2f(contour.toArray());
+        double perimeter = Imgproc.arcLength(points, true);
+        points.release();
+        double solid = 100 * area / referenceHullArea(contour);
+        VisionSettings settings = limits(defaults, area, perimeter, bb.width, bb.height, solid, solid,
+            contour.rows(), bb.width / (double) bb.height);
+        pipeline.findComponentsStage(mask, settings, traced);
+        pipeline.filterContoursStage(traced, kept, settings, 1.0);
+        boolean found = false;
+        for (MatOfPoint candidate : kept) {
+          found |= Arrays.equals(candidate.toArray(), contour.toArray());
+        }
+        if (!found) {
+          difference = "blob at " + bb + " with contour area " + area + " is skipped at its own limits";
+        }
+      }
+      if (difference != null) {
+        mismatches++;
+        String name = (mask == hollow) ? "hollow rectangle" : "frame " + i;
+        System.out.println("  " + name + ": the components detector skips a blob the filter keeps, " + difference);
+      }
+      mask.release();
+    }
+    System.out.println("  the components detector keeps every blob the filter keeps on " + (masks.size() - mismatches)
+        + " of " + masks.size() + " masks (" + blobCount + " blobs)");
+    return mismatches;
+  }
+
+  /**
+   * Check that the lookup table threshold gives the same mask as cvtColor + inRange on every frame.
+   * @return the number of frames where the masks differ
+   */
+  private static int checkThresholdTable(Main.MyPipeline pipeline, List<Mat> frames) {
+    Mat resized = new Mat();
+    Mat expected = new Mat();
+    Mat actual = new Mat();
+    int mismatches = 0;
+    for (int i = 0; i < frames.size(); i++) {
+      // at the camera's resolution and at the pipeline's
+      pipeline.resizeStage(frames.get(i), resized);
+      int differing = 0;
+      for (Mat image : Arrays.asList(frames.get(i), resized)) {
+        pipeline.hsvThresholdStage(image, expected);
+        pipeline.tableThresholdStage(image, actual);
+        differing += differingPixels(expected, actual);
+      }
+      if (differing != 0) {
+        mismatches++;
+        System.out.println("  frame " + i + ": lookup table differs from cvtColor + inRange on "
+            + differing + " pixels");
+      }
+    }
+    resized.release();
+    expected.release();
+    actual.release();
+    System.out.println("  lookup table matches cvtColor + inRange on " + (frames.size() - mismatches)
+        + " of " + frames.size() + " frames");
+    return mismatches;
+  }
+
+  /**
+   * Check that the lookup table threshold gives the same mask as cvtColor + inRange
+   * for all 2^24 BGR colors, with the default bounds and with bounds at the edges
+   * of each channel's range. The colors are laid out in a different order than the
+   * table's index, so a packing mistake shows up.
+   * @return the number of bounds where any color differs
+   */
+  private static int checkThresholdTableColors() {
+    VisionSettings defaults = VisionSettings.defaults();
+    double[][] boundsList = {
+      {defaults.hsvThresholdHue[0], defaults.hsvThresholdHue[1], defaults.hsvThresholdSaturation[0],
+        defaults.hsvThresholdSaturation[1], defaults.hsvThresholdValue[0], defaults.hsvThresholdValue[1]},
+      {0, 180, 0, 255, 0, 255},
+      {0, 0, 0, 0, 0, 0},
+      {0, 10, 100, 255, 50, 200},
+      {170, 180, 0, 30, 250, 255},
+      {58.5, 129.5, 79.5, 240.5, 97.5, 254.5},
+    };
+
+    final int side = 1024;
+    Mat colors = new Mat(side, side, CvType.CV_8UC3);
+    Mat hsv = new Mat();
+    Mat actual = new Mat();
+    byte[] bgr = new byte[side * side * 3];
+    int mismatches = 0;
+    for (double[] bounds : boundsList) {
+      ThresholdTable table = new ThresholdTable();
+      table.setThresholds(new double[] {bounds[0], bounds[1]}, new double[] {bounds[2], bounds[3]},
+          new double[] {bounds[4], bounds[5]});
+      awaitReady(table);
+      Scalar lower = new Scalar(bounds[0], bounds[2], bounds[4]);
+      Scalar upper = new Scalar(bounds[1], bounds[3], bounds[5]);
+
+      long differing = 0;
+      for (int chunk = 0; chunk < (1 << 24) / (side * side); chunk++) {
+        // blue is the low byte of the color number here, the high byte of the table's index
+        for (int i = 0, j = 0; i < side * side; i++, j += 3) {
+          int color = chunk * side * side + i;
+          bgr[j] = (byte) color;
+          bgr[j + 1] = (byte) (color >>> 8);
+          bgr[j + 2] = (byte) (color >>> 16);
+        }
+        colors.put(0, 0, bgr);
+        Imgproc.cvtColor(colors, hsv, Imgproc.COLOR_BGR2HSV);
+        Core.inRange(hsv, lower, upper, hsv);
+        table.apply(colors, actual);
+        differing += differingPixels(hsv, actual);
+      }
+      if (differing != 0) {
+        mismatches++;
+        System.out.println("  bounds " + Arrays.toString(bounds) + ": lookup table differs from cvtColor + inRange on "
+            + differing + " colors");
+      }
+    }
+    colors.release();
+    hsv.release();
+    actual.release();
+    System.out.println("  lookup table matches cvtColor + inRange on every color for "
+        + (boundsList.length - mismatches) + " of " + boundsList.length + " bounds");
+    return mismatches;
+  }
+
+  private static void awaitReady(ThresholdTable table) {
+    while (!table.isReady()) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * The number of pixels where two masks differ, or all of them if the sizes differ.
+   */
+  private static int differingPixels(Mat expected, Mat actual) {
+    if (!expected.size().equals(actual.size()) || expected.type() != actual.type()) {
+      return expected.rows() * expected.cols();
+    }
+    Mat difference = new Mat();
+    Core.compare(expected, actual, difference, Core.CMP_NE);
+    int differing = Core.countNonZero(difference);
+    difference.release();
+    return differing;
+  }
+
+  /**
+   * The contour filter as it was before it was made allocation-free, kept as
+   * the reference for checkFilterContours.
+   */
+  private static void referenceFilterContours(List<MatOfPoint> inputContours, VisionSettings settings,
+      List<MatOfPoint> output) {
+    output.clear();
+    for (int i = 0; i < inputContours.size(); i++) {
+      final MatOfPoint contour = inputContours.get(i);
+
+      // Filter by Width & Height
+      final Rect bb = Imgproc.boundingRect(contour);
+      if (bb.width < settings.filterContoursMinWidth) continue;
+      if (bb.height < settings.filterContoursMinHeight) continue;
+
+      // Filter by Area & Perimeter
+      final double area = Imgproc.contourArea(contour);
+      if (area < settings.filterContoursMinArea) continue;
+      MatOfPoint2f points = new MatOfPoint2f(contour.toArray());
+      double perimeter = Imgproc.arcLength(points, true);
+      points.release();
+      if (perimeter < settings.filterContoursMinPerimeter) continue;
+
+      // Filter by Solidity
+      final double solid = 100 * area / referenceHullArea(contour);
+      if (solid < settings.filterContoursSolidity[0] || solid > settings.filterContoursSolidity[1]) continue;
+
+      // Filter by number of vertices
+      if (contour.rows() < settings.filterContoursMinVertices) continue;
+
+      // Filter by ratio
+      final double ratio = bb.width / (double) bb.height;
+      if (ratio < settings.filterContoursMinRatio) continue;
+
+      // Filter be Concavity
+      if (Imgproc.isContourConvex(contour)) continue;
+
+      output.add(contour);
+    }
+  }
+
+  /**
+   * Area of a contour's convex hull, built point by point as the original filter did.
+   */
+  private static double referenceHullArea(MatOfPoint contour) {
+    MatOfInt hull = new MatOfInt();
+    Imgproc.convexHull(contour, hull);
+    MatOfPoint mopHull = new MatOfPoint();
+    mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
+    for (int j = 0; j < hull.size().height; j++) {
+      int index = (int) hull.get(j, 0)[0];
+      double[] point = new double[] {contour.get(index, 0)[0], contour.get(index, 0)[1]};
+      mopHull.put(j, 0, point);
+    }
+    double area = Imgproc.contourArea(mopHull);
+    hull.release();
+    mopHull.release();
+    return area;
+  }
+
+  /**
+   * A snapshot with every contour filter limit replaced.
+   */
+  private static VisionSettings limits(VisionSettings settings, double minArea, double minPerimeter,
+      double minWidth, double minHeight, double minSolidity, double maxSolidity, double minVertices,
+      double minRatio) {
+    return settings
+        .with(VisionSettings.kFilterContoursMinArea, new double[] {minArea})
+        .with(VisionSettings.kFilterContoursMinPerimeter, new double[] {minPerimeter})
+        .with(VisionSettings.kFilterContoursMinWidth, new double[] {minWidth})
+        .with(VisionSettings.kFilterContoursMinHeight, new double[] {minHeight})
+        .with(VisionSettings.kFilterContoursSolidity, new double[] {minSolidity, maxSolidity})
+        .with(VisionSettings.kFilterContoursMinVertices, new double[] {minVertices})
+        .with(VisionSettings.kFilterContoursMinRatio, new double[] {minRatio});
+  }
+
+  private static void benchmarkStages(Main.MyPipeline pipeline, List<Mat> frames) {
+    final int n = frames.size();
+
+    // Prepare each stage's inputs by running the stages before it once
+    final Mat[] resized = new Mat[n];
+    final Mat[] masks = new Mat[n];
+    final List<List<MatOfPoint>> contours = new ArrayList<>();
+    final List<List<MatOfPoint>> filtered = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      resized[i] = new Mat();
+      masks[i] = new Mat();
+      pipeline.resizeStage(frames.get(i), resized[i]);
+      pipeline.hsvThresholdStage(resized[i], masks[i]);
+      List<MatOfPoint> found = new ArrayList<>();
+      pipeline.findContoursStage(masks[i], false, found);
+      contours.add(found);
+      List<MatOfPoint> kept = new ArrayList<>();
+      pipeline.filterContoursStage(found, kept);
+      filtered.add(kept);
+    }
+
+    final Mat resizeOut = new Mat();
+    final Mat thresholdOut = new Mat();
+    final List<MatOfPoint> contoursOut = new ArrayList<>();
+    final List<MatOfPoint> filterOut = new ArrayList<>();
+
+    measure("resizeImage", n, i -> pipeline.resizeStage(frames.get(i), resizeOut));
+    measure("hsvThreshold (cvtColor+inRange)", n, i -> pipeline.hsvThresholdStage(resized[i], thresholdOut));
+    measure("hsvThreshold (lookup table)", n, i -> pipeline.tableThresholdStage(resized[i], thresholdOut));
+    measure("findContours (RETR_LIST)", n, i -> pipeline.findContoursStage(masks[i], false, contoursOut));
+    measure("findContours (RETR_EXTERNAL)", n, i -> pipeline.findContoursStage(masks[i], true, contoursOut));
+    measure("filterContours", n, i -> pipeline.filterContoursStage(contours.get(i), filterOut));
+    measure("findCenter", n, i -> {
+      List<MatOfPoint> kept = filtered.get(i);
+      for (int j = 0; j < kept.size(); j++) {
+        pipeline.findCenter(kept.get(j));
+      }
+    });
+    measure("process", n, i -> pipeline.process(frames.get(i)));
+  }
+
+  /**
+   * Time both detection modes without tracking and check they accept the same targets.
+   */
+  private static void compareDetectionModes(List<Mat> frames) {
+    final int n = frames.size();
+    Main.MyPipeline full = new Main.MyPipeline(null);
+    Main.MyPipeline coarse = new Main.MyPipeline(null);
+    full.disableTracking();
+    coarse.disableTracking();
+    coarse.setCoarseToFine(true);
+    full.awaitWarm(10000);
+    coarse.awaitWarm(10000);
+
+    measure("process, full frame, no tracking", n, i -> full.process(frames.get(i)));
+    measure("process, coarse to fine, no tracking", n, i -> coarse.process(frames.get(i)));
+
+    int mismatches = 0;
+    for (int i = 0; i < n; i++) {
+      full.process(frames.get(i));
+      coarse.process(frames.get(i));
+      String difference = compareTargets(full.filterContoursOutput(), coarse.filterContoursOutput());
+      if (difference != null) {
+        mismatches++;
+        System.out.println("  frame " + i + ": coarse to fine differs from full frame, " + difference);
+      }
+    }
+    System.out.println("  coarse to fine matches full frame on " + (n - mismatches) + " of " + n + " frames");
+  }
+
+  /**
+   * Time both detectors without tracking and check they accept the same targets.
+   */
+  private static void compareDetectors(List<Mat> frames) {
+    final int n = frames.size();
+    Main.MyPipeline contours = new Main.MyPipeline(null);
+    Main.MyPipeline components = new Main.MyPipeline(null);
+    contours.disableTracking();
+    components.disableTracking();
+    components.setComponentDetection(true);
+    contours.awaitWarm(10000);
+    components.awaitWarm(10000);
+
+    measure("process, contours, no tracking", n, i -> contours.process(frames.get(i)));
+    measure("process, components, no tracking", n, i -> components.process(frames.get(i)));
+
+    int mismatches = 0;
+    for (int i = 0; i < n; i++) {
+      contours.process(frames.get(i));
+      components.process(frames.get(i));
+      String difference = compareTargets(contours.filterContoursOutput(), components.filterContoursOutput());
+      if (difference != null) {
+        mismatches++;
+        System.out.println("  frame " + i + ": components differ from contours, " + difference);
+      }
+    }
+    System.out.println("  components match contours on " + (n - mismatches) + " of " + n + " frames");
+  }
+
+  /**
+   * Time resize and threshold with one band per core against one pass, and
+   * check the banded pipeline produces the same images, masks and targets.
+   */
+  private static void compareBands(List<Mat> frames) {
+    final int n = frames.size();
+    final int bandCount = BandProcessor.autoBands();
+    Main.MyPipeline serial = new Main.MyPipeline(null);
+    Main.MyPipeline banded = new Main.MyPipeline(null);
+    serial.disableTracking();
+    banded.disableTracking();
+    banded.setBands(bandCount);
+    serial.awaitWarm(10000);
+    banded.awaitWarm(10000);
+
+    final BandProcessor bands = new BandProcessor(bandCount);
+    final Mat[] resized = new Mat[n];
+    for (int i = 0; i < n; i++) {
+      resized[i] = new Mat();
+      serial.resizeStage(frames.get(i), resized[i]);
+    }
+    final Mat resizeOut = new Mat();
+    final Mat thresholdOut = new Mat();
+    final Rect small = new Rect(0, 0, resized[0].cols(), resized[0].rows());
+    final Rect large = new Rect(0, 0, frames.get(0).cols(), frames.get(0).rows());
+    final String suffix = ", " + bandCount + " bands";
+
+    measure("resizeImage", n, i -> serial.resizeStage(frames.get(i), resizeOut));
+    measure("resizeImage" + suffix, n, i -> bands.resize(frames.get(i), resizeOut, small.width, small.height,
+        Imgproc.INTER_LINEAR));
+    measure("threshold " + small.width + "x" + small.height, n,
+        i -> serial.tableThresholdStage(resized[i], thresholdOut));
+    measure("threshold " + small.width + "x" + small.height + suffix, n,
+        i -> serial.bandedThresholdStage(bands, resized[i], thresholdOut, small));
+    measure("threshold " + large.width + "x" + large.height, n,
+        i -> serial.tableThresholdStage(frames.get(i), thresholdOut));
+    measure("threshold " + large.width + "x" + large.height + suffix, n,
+        i -> serial.bandedThresholdStage(bands, frames.get(i), thresholdOut, large));
+    measure("process, 1 band, no tracking", n, i -> serial.process(frames.get(i)));
+    measure("process" + suffix + ", no tracking", n, i -> banded.process(frames.get(i)));
+
+    int mismatches = 0;
+    for (int i = 0; i < n; i++) {
+      serial.process(frames.get(i));
+      banded.process(frames.get(i));
+      String difference;
+      if (!same(serial.resizeImageOutput(), banded.resizeImageOutput())) {
+        difference = "resized images differ";
+      } else if (!same(serial.hsvThresholdOutput(), banded.hsvThresholdOutput())) {
+        difference = "masks differ";
+      } else {
+        difference = compareTargets(serial.filterContoursOutput(), banded.filterContoursOutput());
+      }
+      if (difference != null) {
+        mismatches++;
+        System.out.println("  frame " + i + ": bands differ from one pass, " + difference);
+      }
+    }
+    System.out.println("  bands match one pass on " + (n - mismatches) + " of " + n + " frames");
+  }
+
+  /**
+   * Whether two images have the same size and pixels.
+   */
+  private static boolean same(Mat expected, Mat actual) {
+    if (!expected.size().equals(actual.size()) || expected.type() != actual.type()) {
+      return false;
+    }
+    Mat difference = new Mat();
+    Core.absdiff(expected, actual, difference);
+    boolean same = Core.countNonZero(difference.reshape(1)) == 0;
+    difference.release();
+    return same;
+  }
+
+  /**
+   * Compare two filtered contour lists point by point, ignoring order.
+   * @return a description of the first difference, or null if they are the same
+   */
+  private static String compareTargets(List<MatOfPoint> expected, List<MatOfPoint> actual) {
+    if (expected.size() != actual.size()) {
+      return expected.size() + " vs " + actual.size() + " targets";
+    }
+    boolean[] used = new boolean[actual.size()];
+    for (MatOfPoint contour : expected) {
+      boolean found = false;
+      for (int j = 0; j < actual.size() && !found; j++) {
+        if (!used[j] && Arrays.equals(contour.toArray(), actual.get(j).toArray())) {
+          used[j] = true;
+          found = true;
+        }
+      }
+      if (!found) {
+        return "target at " + Imgproc.boundingRect(contour) + " has different contour points";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Run one operation repeatedly over the inputs and print its rate and allocation.
+   */
+  private static void measure(String name, int inputs, IntConsumer op) {
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+
+    long end = System.nanoTime() + kWarmupNanos;
+    for (int i = 0; System.nanoTime() < end; i++) {
+      op.accept(i % inputs);
+    }
+
+    long ops = 0;
+    long allocStart = threads.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    end = start + kMeasureNanos;
+    long now;
+    do {
+      op.accept((int) (ops % inputs));
+      ops++;
+      now = System.nanoTime();
+    } while (now < end);
+    long allocated = threads.getThreadAllocatedBytes(threadId) - allocStart;
+    long elapsed = now - start;
+
+    System.out.printf("  %-34s %10.1f ops/s %10.1f us/op %10.1f B/op%n",
+        name, ops / (elapsed / 1e9), elapsed / 1e3 / ops, allocated / (double) ops);
+  }
+
+  /**
+   * Draw 640x480 frames with a lit power port outline at varying positions and
+   * sizes, plus sensor noise and a few small reflections.
+   */
+  static List<Mat> syntheticFrames(int count, Random random) {
+    List<Mat> frames = new ArrayList<>();
+    Scalar green = new Scalar(100, 255, 50);
+    for (int f = 0; f < count; f++) {
+      Mat frame = new Mat(480, 640, CvType.CV_8UC3, new Scalar(20, 20, 20));
+      Mat noise = new Mat(480, 640, CvType.CV_8UC3);
+      Core.randn(noise, 0, 12);
+      Core.add(frame, noise, frame);
+      noise.release();
+
+      // Lower half of a hexagon, like the 2020 power port tape
+      double scale = 0.5 + random.nextDouble();
+      double cx = 160 + random.nextDouble() * 320;
+      double cy = 160 + random.nextDouble() * 160;
+      MatOfPoint outline = new MatOfPoint(
+          new Point(cx - 100 * scale, cy - 45 * scale),
+          new Point(cx - 50 * scale, cy + 45 * scale),
+          new Point(cx + 50 * scale, cy + 45 * scale),
+          new Point(cx + 100 * scale, cy - 45 * scale));
+      List<MatOfPoint> polys = new ArrayList<>();
+      polys.add(outline);
+      Imgproc.polylines(frame, polys, false, green, Math.max(2, (int) (8 * scale)));
+
+      for (int r = 0; r < 6; r++) {
+        Point p = new Point(random.nextInt(640), random.nextInt(480));
+        Imgproc.circle(frame, p, 2 + random.nextInt(6), green, -1);
+      }
+      frames.add(frame);
+    }
+    return frames;
+  }
+}
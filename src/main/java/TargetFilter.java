@@ -0,0 +1,134 @@
+/**
+ * A constant-velocity Kalman filter for the target angles.
+ *
+ * <p>Each axis is filtered on its own, with the angle and its rate as state.
+ * The filter smooths the measured angles, estimates how fast they change and
+ * can predict where the target is after a given latency. All state is kept
+ * in primitive arrays, so an update does not allocate.
+ *
+ * <p>Not thread safe; it is updated from the publish step only.
+ */
+public final class TargetFilter {
+  public static final int kX = 0;
+  public static final int kY = 1;
+
+  // Initial rate uncertainty, (deg/s)^2
+  private static final double kInitialRateVariance = 100.0 * 100.0;
+  // Start over when measurements are further apart than this, in microseconds
+  private static final long kMaxGapMicros = 500_000L;
+
+  private final double m_processNoise;
+  private final double m_measurementNoise;
+
+  // Per axis: angle (deg), rate (deg/s)
+  private final double[] m_state = new double[4];
+  // Per axis: covariance p00, p01, p11
+  private final double[] m_covariance = new double[6];
+  private boolean m_valid;
+  private long m_lastTime;
+
+  /**
+   * Create a filter.
+   * @param processNoise how fast the target's angular rate may change, as a spectral density in (deg/s)^2 per second
+   * @param measurementNoise the variance of one measured angle in deg^2
+   */
+  public TargetFilter(double processNoise, double measurementNoise) {
+    m_processNoise = processNoise;
+    m_measurementNoise = measurementNoise;
+  }
+
+  /**
+   * Forget the target, e.g. when it is no longer seen.
+   */
+  public void reset() {
+    m_valid = false;
+  }
+
+  /**
+   * Whether the filter has a target estimate.
+   */
+  public boolean isValid() {
+    return m_valid;
+  }
+
+  /**
+   * Add a measurement.
+   * @param angleX the measured horizontal angle in degrees
+   * @param angleY the measured vertical angle in degrees
+   * @param timeMicros when the measured frame was captured, in microseconds
+   */
+  public void update(double angleX, double angleY, long timeMicros) {
+    long gap = timeMicros - m_lastTime;
+    if (!m_valid || gap <= 0 || gap > kMaxGapMicros) {
+      start(kX, angleX);
+      start(kY, angleY);
+      m_valid = true;
+    } else {
+      double dt = gap * 1e-6;
+      step(kX, angleX, dt);
+      step(kY, angleY, dt);
+    }
+    m_lastTime = timeMicros;
+  }
+
+  /**
+   * The filtered angle in degrees.
+   * @param axis kX or kY
+   */
+  public double angle(int axis) {
+    return m_state[axis * 2];
+  }
+
+  /**
+   * The estimated angular velocity in degrees per second.
+   * @param axis kX or kY
+   */
+  public double rate(int axis) {
+    return m_state[axis * 2 + 1];
+  }
+
+  /**
+   * The angle predicted some time after the last measured frame.
+   * @param axis kX or kY
+   * @param seconds how far ahead to predict
+   */
+  public double predict(int axis, double seconds) {
+    return m_state[axis * 2] + m_state[axis * 2 + 1] * seconds;
+  }
+
+  private void start(int axis, double angle) {
+    int s = axis * 2;
+    int c = axis * 3;
+    m_state[s] = angle;
+    m_state[s + 1] = 0.0;
+    m_covariance[c] = m_measurementNoise;
+    m_covariance[c + 1] = 0.0;
+    m_covariance[c + 2] = kInitialRateVariance;
+  }
+
+  private void step(int axis, double angle, double dt) {
+    int s = axis * 2;
+    int c = axis * 3;
+    double p00 = m_covariance[c];
+    double p01 = m_covariance[c + 1];
+    double p11 = m_covariance[c + 2];
+    double q = m_processNoise;
+
+    // Predict
+    m_state[s] += dt * m_state[s + 1];
+    p00 += dt * (2.0 * p01 + dt * p11) + q * dt * dt * dt / 3.0;
+    p01 += dt * p11 + q * dt * dt / 2.0;
+    p11 += q * dt;
+
+    // Correct
+    double innovation = angle - m_state[s];
+    double variance = p00 + m_measurementNoise;
+    double k0 = p00 / variance;
+    double k1 = p01 / variance;
+    m_state[s] += k0 * innovation;
+    m_state[s + 1] += k1 * innovation;
+    m_covariance[c] = (1.0 - k0) * p00;
+    m_covariance[c + 1] = (1.0 - k0) * p01;
+    m_covariance[c + 2] = p11 - k1 * p01;
+  }
+}
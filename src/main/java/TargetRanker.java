@@ -0,0 +1,152 @@
+import java.util.List;
+
+import org.opencv.core.MatOfPoint;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+/**
+ * Scores the contours that passed the filter and orders them best first.
+ *
+ * <p>Each contour's moments are computed once, here; the area and centroid
+ * they give are kept in the frame's {@link Targets} and used both for the
+ * score and for the published center. A contour scores higher the larger it
+ * is next to the others, the closer its solidity is to the middle of the
+ * filter's solidity range, the closer its aspect ratio is to the expected
+ * target ratio and the closer it is to the last best target.
+ *
+ * <p>Keeps the last best target, so only one thread may rank at a time.
+ */
+public final class TargetRanker {
+  private static final double kAreaWeight = 1.0;
+  private static final double kSolidityWeight = 0.5;
+  private static final double kRatioWeight = 1.0;
+  private static final double kContinuityWeight = 1.0;
+  // Distance from the last target, as a fraction of the image, past which continuity adds nothing
+  private static final double kContinuityRange = 0.25;
+
+  /**
+   * The ranked targets of one frame. Reused from frame to frame.
+   */
+  public static final class Targets {
+    int count;
+    // Indices into the filtered contour list, best first
+    int[] order = new int[8];
+    double[] area = new double[8];
+    double[] centerX = new double[8];
+    double[] centerY = new double[8];
+    double[] solidity = new double[8];
+    double[] ratio = new double[8];
+    double[] score = new double[8];
+    // Angles to the best target in degrees, set when it is published
+    double angleX;
+    double angleY;
+    // Pose of the best target, see PoseEstimator
+    boolean hasPose;
+    final double[] pose = new double[PoseEstimator.kSize];
+
+    void reset(int newCount) {
+      count = newCount;
+      hasPose = false;
+      if (order.length < newCount) {
+        int capacity = Math.max(newCount, order.length * 2);
+        order = new int[capacity];
+        area = new double[capacity];
+        centerX = new double[capacity];
+        centerY = new double[capacity];
+        solidity = new double[capacity];
+        ratio = new double[capacity];
+        score = new double[capacity];
+      }
+    }
+
+    /**
+     * The index of the best target in the filtered contour list, or -1 if there is none.
+     */
+    public int best() {
+      return count > 0 ? order[0] : -1;
+    }
+  }
+
+  private boolean m_hasLast;
+  private double m_lastX;
+  private double m_lastY;
+
+  /**
+   * Forget the last best target, so the next frame is ranked without continuity.
+   */
+  public void reset() {
+    m_hasLast = false;
+  }
+
+  /**
+   * Score and order the filtered contours of one frame.
+   * @param filtered the contours that passed the filter
+   * @param solidity each contour's solidity in percent, as computed by the filter
+   * @param ratio each contour's bounding box width / height, as computed by the filter
+   * @param settings the settings the filter ran with
+   * @param width the width of the mask the contours were found in
+   * @param height the height of the mask the contours were found in
+   * @param targets set to the ranked targets
+   */
+  public void rank(List<MatOfPoint> filtered, double[] solidity, double[] ratio, VisionSettings settings,
+      int width, int height, Targets targets) {
+    int count = filtered.size();
+    targets.reset(count);
+
+    double maxArea = 0.0;
+    for (int i = 0; i < count; i++) {
+      Moments m = Imgproc.moments(filtered.get(i));
+      targets.area[i] = m.m00;
+      if (m.m00 > 0.0) {
+        targets.centerX[i] = m.m10 / m.m00;
+        targets.centerY[i] = m.m01 / m.m00;
+      } else {
+        // Degenerate contour: fall back to its first point
+        double[] point = filtered.get(i).get(0, 0);
+        targets.centerX[i] = point[0];
+        targets.centerY[i] = point[1];
+      }
+      targets.solidity[i] = solidity[i];
+      targets.ratio[i] = ratio[i];
+      maxArea = Math.max(maxArea, m.m00);
+    }
+
+    double[] solidityRange = settings.filterContoursSolidity;
+    double solidityMid = (solidityRange[0] + solidityRange[1]) / 2.0;
+    double solidityHalf = Math.max(1.0, (solidityRange[1] - solidityRange[0]) / 2.0);
+    double expectedRatio = settings.targetRatio;
+
+    for (int i = 0; i < count; i++) {
+      double score = 0.0;
+      if (maxArea > 0.0) {
+        score += kAreaWeight * targets.area[i] / maxArea;
+      }
+      score += kSolidityWeight * Math.max(0.0, 1.0 - Math.abs(targets.solidity[i] - solidityMid) / solidityHalf);
+      if (expectedRatio > 0.0 && targets.ratio[i] > 0.0) {
+        score += kRatioWeight * Math.min(targets.ratio[i] / expectedRatio, expectedRatio / targets.ratio[i]);
+      }
+      if (m_hasLast) {
+        double dx = targets.centerX[i] / width - m_lastX;
+        double dy = targets.centerY[i] / height - m_lastY;
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        score += kContinuityWeight * Math.max(0.0, 1.0 - distance / kContinuityRange);
+      }
+      targets.score[i] = score;
+
+      // Insertion sort by descending score; there are only ever a few targets
+      int j = i;
+      while (j > 0 && targets.score[targets.order[j - 1]] < score) {
+        targets.order[j] = targets.order[j - 1];
+        j--;
+      }
+      targets.order[j] = i;
+    }
+
+    m_hasLast = count > 0;
+    if (m_hasLast) {
+      int best = targets.order[0];
+      m_lastX = targets.centerX[best] / width;
+      m_lastY = targets.centerY[best] / height;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Lookup table thresholding of BGR images.
+ *
+ * <p>For a given set of HSV bounds, every 24-bit BGR color is classified once
+ * into a bitset (2 MB). Thresholding a frame is then a single pass of table
+ * lookups with no HSV intermediate. The table is built by running
+ * Imgproc.cvtColor and Core.inRange over all colors, so the mask is identical
+ * to the cvtColor + inRange path.
+ *
+ * <p>Tables are built on a background thread whenever the bounds change, and
+ * shared: a pipeline asking for bounds another pipeline already has a table
+ * for, such as every profile and camera left at the default settings, gets
+ * that table instead of a new build. Until
+ * the first table is ready, {@link #apply} returns false and the caller should
+ * fall back to the regular threshold. A caller that must threshold with one
+ * settings snapshot passes it in, and falls back the same way until the table
+ * for that snapshot's bounds is ready.
+ *
+ * <p>Several threads may threshold parts of one image at the same time, each
+ * with its own {@link Buffers}.
+ */
+public final class ThresholdTable {
+  private static final ExecutorService s_builder = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Threshold table builder");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Tables by bounds, only touched on the builder thread. Weak, so a table no pipeline uses any more is freed
+  private static final Map<List<Double>, WeakReference<Table>> s_tables = new HashMap<>();
+
+  /**
+   * Reusable per-frame buffers for one thread.
+   */
+  public static final class Buffers {
+    private byte[] m_pixels = new byte[0];
+    private byte[] m_mask = new byte[0];
+  }
+
+  /**
+   * A built table and the bounds it was built for.
+   */
+  private static final class Table {
+    final double[] bounds;
+    final long[] bits;
+
+    Table(double[] bounds, long[] bits) {
+      this.bounds = bounds;
+      this.bits = bits;
+    }
+  }
+
+  private volatile Table m_table;
+  private double[] m_requested;
+
+  private final Buffers m_buffers = new Buffers();
+
+  /**
+   * Request a table for the given HSV bounds.
+   * Does nothing if the bounds are the same as the last request.
+   * @param hue The min and max hue
+   * @param sat The min and max saturation
+   * @param val The min and max value
+   */
+  public synchronized void setThresholds(double[] hue, double[] sat, double[] val) {
+    double[] bounds = {hue[0], hue[1], sat[0], sat[1], val[0], val[1]};
+    if (Arrays.equals(bounds, m_requested)) {
+      return;
+    }
+    m_requested = bounds;
+
+    s_builder.execute(() -> {
+      synchronized (this) {
+        // a newer request is queued behind us
+        if (m_requested != bounds) {
+          return;
+        }
+      }
+      Table table = shared(bounds);
+      synchronized (this) {
+        if (m_requested == bounds) {
+          m_table = table;
+        }
+      }
+    });
+  }
+
+  /**
+   * Whether a table is ready to use.
+   */
+  public boolean isReady() {
+    return m_table != null;
+  }
+
+  /**
+   * Whether the table for a settings snapshot's bounds is ready to use.
+   */
+  public boolean isReady(VisionSettings settings) {
+    Table table = m_table;
+    return table != null && matches(table.bounds, settings);
+  }
+
+  /**
+   * Threshold a BGR image into a binary mask using the current table.
+   * Only one thread may call this at a time.
+   * @param input The 8-bit, 3-channel BGR image.
+   * @param output The image in which to store the 0/255 mask.
+   * @return false if no table has been built yet and output was not written.
+   */
+  public boolean apply(Mat input, Mat output) {
+    final Table table = m_table;
+    if (table == null) {
+      return false;
+    }
+    lookUp(table.bits, input, output, m_buffers);
+    return true;
+  }
+
+  /**
+   * Threshold a BGR image into a binary mask with the table for a settings snapshot's bounds.
+   * Threads with their own buffers may call this at the same time.
+   * @param input The 8-bit, 3-channel BGR image.
+   * @param output The image in which to store the 0/255 mask.
+   * @param buffers The calling thread's buffers.
+   * @param settings The snapshot whose HSV bounds to threshold with.
+   * @return false if the table for those bounds is not ready and output was not written.
+   */
+  public boolean apply(Mat input, Mat output, Buffers buffers, VisionSettings settings) {
+    final Table table = m_table;
+    if (table == null || !matches(table.bounds, settings)) {
+      return false;
+    }
+    lookUp(table.bits, input, output, buffers);
+    return true;
+  }
+
+  /**
+   * The table for some bounds, built only if no pipeline has one. Runs on the builder thread.
+   */
+  private static Table shared(double[] bounds) {
+    List<Double> key = new ArrayList<>();
+    for (double bound : bounds) {
+      key.add(bound);
+    }
+    WeakReference<Table> ref = s_tables.get(key);
+    Table table = ref != null ? ref.get() : null;
+    if (table == null) {
+      s_tables.values().removeIf(unused -> unused.get() == null);
+      table = new Table(bounds, build(bounds));
+      s_tables.put(key, new WeakReference<>(table));
+    }
+    return table;
+  }
+
+  private static boolean matches(double[] bounds, VisionSettings settings) {
+    return bounds[0] == settings.hsvThresholdHue[0] && bounds[1] == settings.hsvThresholdHue[1]
+        && bounds[2] == settings.hsvThresholdSaturation[0] && bounds[3] == settings.hsvThresholdSaturation[1]
+        && bounds[4] == settings.hsvThresholdValue[0] && bounds[5] == settings.hsvThresholdValue[1];
+  }
+
+  private static void lookUp(long[] table, Mat input, Mat output, Buffers buffers) {
+    final int pixels = input.rows() * input.cols();
+    if (buffers.m_mask.length < pixels) {
+      buffers.m_pixels = new byte[pixels * 3];
+      buffers.m_mask = new byte[pixels];
+    }
+    final byte[] bgr = buffers.m_pixels;
+    final byte[] mask = buffers.m_mask;
+
+    input.get(0, 0, bgr);
+    for (int i = 0, j = 0; i < pixels; i++, j += 3) {
+      final int color = (bgr[j] & 0xff) << 16 | (bgr[j + 1] & 0xff) << 8 | (bgr[j + 2] & 0xff);
+      mask[i] = (byte) -((table[color >>> 6] >>> color) & 1);
+    }
+
+    output.create(input.rows(), input.cols(), CvType.CV_8UC1);
+    output.put(0, 0, mask);
+  }
+
+  /**
+   * Classify every BGR color, one blue plane of 256x256 colors at a time.
+   */
+  private static long[] build(double[] bounds) {
+    final long[] table = new long[1 << 18];
+    final Scalar lower = new Scalar(bounds[0], bounds[2], bounds[4]);
+    final Scalar upper = new Scalar(bounds[1], bounds[3], bounds[5]);
+
+    final Mat plane = new Mat(256, 256, CvType.CV_8UC3);
+    final Mat hsv = new Mat();
+    final byte[] bgr = new byte[256 * 256 * 3];
+    final byte[] mask = new byte[256 * 256];
+
+    // green varies by row and red by column
+    for (int i = 0, j = 0; i < 256 * 256; i++, j += 3) {
+      bgr[j + 1] = (byte) (i >>> 8);
+      bgr[j + 2] = (byte) i;
+    }
+
+    for (int b = 0; b < 256; b++) {
+      for (int j = 0; j < bgr.length; j += 3) {
+        bgr[j] = (byte) b;
+      }
+      plane.put(0, 0, bgr);
+      Imgproc.cvtColor(plane, hsv, Imgproc.COLOR_BGR2HSV);
+      Core.inRange(hsv, lower, upper, hsv);
+      hsv.get(0, 0, mask);
+
+      for (int i = 0; i < mask.length; i++) {
+        if (mask[i] != 0) {
+          final int color = b << 16 | i;
+          table[color >>> 6] |= 1L << color;
+        }
+      }
+    }
+
+    plane.release();
+    hsv.release();
+    return table;
+  }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+/**
+ * Sends each published result to the robot as one UDP packet, next to
+ * NetworkTables, so the robot gets it without NT's batching and TCP delays.
+ *
+ * <p>Packets have a fixed big-endian layout, read by UdpResultReceiver:
+ * <pre>
+ *   0  int     magic, {@link #kMagic}
+ *   4  long    sequence, counting from 1
+ *  12  long    capture time in NT microseconds, 0 if unknown
+ *  20  int     target count
+ *  24  double  center x (px)
+ *  32  double  center y (px)
+ *  40  double  normalized offset x
+ *  48  double  normalized offset y
+ *  56  double  horizontal angle (deg)
+ *  64  double  vertical angle (deg)
+ * </pre>
+ *
+ * <p>The packet is encoded into one reused direct buffer and sent on a
+ * non-blocking channel, so a send never allocates or waits. A packet that
+ * does not fit in the socket buffer is dropped. Counts go to the {@code udp}
+ * subtable of the pipeline's table: sent and errors.
+ */
+public final class UdpPublisher {
+  public static final int kMagic = 0x50560001;
+  public static final int kPacketBytes = 72;
+
+  private final InetSocketAddress m_address;
+  private final DatagramChannel m_channel;
+  private final ByteBuffer m_packet = ByteBuffer.allocateDirect(kPacketBytes);
+  private long m_sequence;
+  private long m_sent;
+  private long m_errors;
+  private boolean m_failing;
+
+  private final NetworkTableEntry m_sentEntry;
+  private final NetworkTableEntry m_errorsEntry;
+
+  /**
+   * Open a channel to the receiver.
+   * @param host the receiver's host name or address
+   * @param port the receiver's UDP port
+   * @param table the pipeline's table to publish counts under, or null
+   * @throws IOException if the channel could not be opened
+   */
+  public UdpPublisher(String host, int port, NetworkTable table) throws IOException {
+    m_address = new InetSocketAddress(host, port);
+    m_channel = DatagramChannel.open();
+    m_channel.configureBlocking(false);
+
+    if (table != null) {
+      NetworkTable udp = table.getSubTable("udp");
+      m_sentEntry = udp.getEntry("sent");
+      m_errorsEntry = udp.getEntry("errors");
+    } else {
+      m_sentEntry = null;
+      m_errorsEntry = null;
+    }
+  }
+
+  /**
+   * Send one result. Must only be called from the thread that publishes results.
+   * @param captureTime the frame's capture time in NT/cscore microseconds, or 0 if unknown
+   * @param count the number of targets
+   * @param centerX the best target's center x in pixels
+   * @param centerY the best target's center y in pixels
+   * @param offsetX the best target's normalized x offset
+   * @param offsetY the best target's normalized y offset
+   * @param angleX the horizontal angle to the best target in degrees
+   * @param angleY the vertical angle to the best target in degrees
+   */
+  public void send(long captureTime, int count, double centerX, double centerY, double offsetX, double offsetY,
+      double angleX, double angleY) {
+    m_packet.clear();
+    m_packet.putInt(kMagic);
+    m_packet.putLong(++m_sequence);
+    m_packet.putLong(captureTime);
+    m_packet.putInt(count);
+    m_packet.putDouble(centerX);
+    m_packet.putDouble(centerY);
+    m_packet.putDouble(offsetX);
+    m_packet.putDouble(offsetY);
+    m_packet.putDouble(angleX);
+    m_packet.putDouble(angleY);
+    m_packet.flip();
+
+    try {
+      if (m_channel.send(m_packet, m_address) > 0) {
+        m_sent++;
+        set(m_sentEntry, m_sent);
+        if (m_failing) {
+          System.out.println("udp results to " + m_address + " resumed");
+          m_failing = false;
+        }
+      }
+    } catch (IOException ex) {
+      m_errors++;
+      set(m_errorsEntry, m_errors);
+      if (!m_failing) {
+        System.err.println("could not send udp results to " + m_address + ": " + ex);
+        m_failing = true;
+      }
+    }
+  }
+
+  /**
+   * Close the channel.
+   */
+  public void close() {
+    try {
+      m_channel.close();
+    } catch (IOException ex) {
+      System.err.println("could not close udp channel: " + ex);
+    }
+  }
+
+  private static void set(NetworkTableEntry entry, long value) {
+    if (entry != null) {
+      entry.setDouble(value);
+    }
+  }
+}
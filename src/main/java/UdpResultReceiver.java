@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives the results UdpPublisher sends, for use in robot code.
+ *
+ * <p>Has no dependencies beyond the JDK, so it can be copied into the robot
+ * project as is. A daemon thread receives packets and keeps the newest one;
+ * packets that arrive out of order are ignored.
+ *
+ * <pre>
+ *   UdpResultReceiver vision = new UdpResultReceiver(5800);
+ *   vision.start();
+ *   ...
+ *   UdpResultReceiver.Result result = vision.latest();
+ *   if (result != null &amp;&amp; result.count &gt; 0) {
+ *     turret.aim(result.angleX);
+ *   }
+ * </pre>
+ */
+public final class UdpResultReceiver {
+  /**
+   * One result, as sent by the vision coprocessor.
+   */
+  public static final class Result {
+    public final long sequence;
+    // Capture time in the coprocessor's NT microseconds, 0 if unknown
+    public final long captureTime;
+    public final int count;
+    public final double centerX;
+    public final double centerY;
+    public final double offsetX;
+    public final double offsetY;
+    public final double angleX;
+    public final double angleY;
+    // System.nanoTime on this side when the packet arrived
+    public final long receivedNanos;
+
+    Result(ByteBuffer packet, long receivedNanos) {
+      sequence = packet.getLong();
+      captureTime = packet.getLong();
+      count = packet.getInt();
+      centerX = packet.getDouble();
+      centerY = packet.getDouble();
+      offsetX = packet.getDouble();
+      offsetY = packet.getDouble();
+      angleX = packet.getDouble();
+      angleY = packet.getDouble();
+      this.receivedNanos = receivedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("#%d ct %d  cx %.1f  cy %.1f  nx %.3f  ny %.3f  tx %.2f  ty %.2f",
+          sequence, count, centerX, centerY, offsetX, offsetY, angleX, angleY);
+    }
+  }
+
+  private static final int kMagic = 0x50560001;
+  private static final int kPacketBytes = 72;
+  private static final long kRestartGap = 100;
+
+  private final int m_port;
+  private final ByteBuffer m_packet = ByteBuffer.allocateDirect(kPacketBytes);
+  private volatile Result m_latest;
+  private DatagramChannel m_channel;
+  private Thread m_thread;
+
+  /**
+   * Create a receiver.
+   * @param port the UDP port the coprocessor sends to
+   */
+  public UdpResultReceiver(int port) {
+    m_port = port;
+  }
+
+  /**
+   * Bind the port and start receiving.
+   * @throws IOException if the port could not be bound
+   */
+  public synchronized void start() throws IOException {
+    m_channel = DatagramChannel.open();
+    m_channel.bind(new InetSocketAddress(m_port));
+    m_thread = new Thread(this::receiveLoop, "Vision UDP receiver");
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+   * Stop receiving and release the port.
+   */
+  public synchronized void close() {
+    if (m_thread != null) {
+      m_thread.interrupt();
+      m_thread = null;
+    }
+    try {
+      if (m_channel != null) {
+        m_channel.close();
+      }
+    } catch (IOException ex) {
+      // closing anyway
+    }
+  }
+
+  /**
+   * The newest result, or null if none has arrived.
+   */
+  public Result latest() {
+    return m_latest;
+  }
+
+  private void receiveLoop() {
+    try {
+      for (;;) {
+        m_packet.clear();
+        m_channel.receive(m_packet);
+        long now = System.nanoTime();
+        m_packet.flip();
+        if (m_packet.remaining() < kPacketBytes || m_packet.getInt() != kMagic) {
+          continue;
+        }
+        Result result = new Result(m_packet, now);
+        Result latest = m_latest;
+        // A lower sequence means a late packet, unless it is far lower because the coprocessor restarted
+        if (latest == null || result.sequence > latest.sequence
+            || latest.sequence - result.sequence > kRestartGap) {
+          m_latest = result;
+        }
+      }
+    } catch (ClosedByInterruptException ex) {
+      // exit quietly
+    } catch (IOException ex) {
+      if (m_channel.isOpen()) {
+        System.err.println("vision UDP receiver stopped: " + ex);
+      }
+    }
+  }
+}
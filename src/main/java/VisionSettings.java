@@ -0,0 +1,130 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opencv.core.Scalar;
+
+/**
+ * An immutable snapshot of the tunable vision settings.
+ *
+ * <p>A pipeline reads the current snapshot once per frame and hands it to
+ * every step, so a change made while a frame is being processed takes effect
+ * on the next one. Values that
+ * are derived from the settings (threshold Scalars, view plane sizes) are
+ * computed when a snapshot is created, never per frame.
+ */
+public final class VisionSettings {
+  public static final String kHsvThresholdHue = "HsvThresholdHue";
+  public static final String kHsvThresholdSaturation = "HsvThresholdSaturation";
+  public static final String kHsvThresholdValue = "HsvThresholdValue";
+  public static final String kFilterContoursMinArea = "FilterContoursMinArea";
+  public static final String kFilterContoursMinPerimeter = "FilterContoursMinPerimeter";
+  public static final String kFilterContoursMinWidth = "FilterContoursMinWidth";
+  public static final String kFilterContoursMinHeight = "FilterContoursMinHeight";
+  public static final String kFilterContoursSolidity = "FilterContoursSolidity";
+  public static final String kFilterContoursMinVertices = "FilterContoursMinVertices";
+  public static final String kFilterContoursMinRatio = "FilterContoursMinRatio";
+  public static final String kTargetRatio = "TargetRatio";
+  public static final String kHoriFOV = "HoriFOV";
+  public static final String kVertFOV = "VertFOV";
+
+  private final Map<String, double[]> m_values;
+
+  public final double[] hsvThresholdHue;
+  public final double[] hsvThresholdSaturation;
+  public final double[] hsvThresholdValue;
+  public final double filterContoursMinArea;
+  public final double filterContoursMinPerimeter;
+  public final double filterContoursMinWidth;
+  public final double filterContoursMinHeight;
+  public final double[] filterContoursSolidity;
+  public final double filterContoursMinVertices;
+  public final double filterContoursMinRatio;
+  public final double targetRatio; // Expected bounding box width / height, for ranking
+  public final double horiFOV; // Horizontal Field of View in degrees
+  public final double vertFOV; // Vertical Field of View in degrees
+
+  // Derived
+  public final Scalar hsvLower;
+  public final Scalar hsvUpper;
+  public final double viewPlaneWidth;
+  public final double viewPlaneHeight;
+
+  private VisionSettings(Map<String, double[]> values) {
+    m_values = values;
+
+    hsvThresholdHue = values.get(kHsvThresholdHue);
+    hsvThresholdSaturation = values.get(kHsvThresholdSaturation);
+    hsvThresholdValue = values.get(kHsvThresholdValue);
+    filterContoursMinArea = values.get(kFilterContoursMinArea)[0];
+    filterContoursMinPerimeter = values.get(kFilterContoursMinPerimeter)[0];
+    filterContoursMinWidth = values.get(kFilterContoursMinWidth)[0];
+    filterContoursMinHeight = values.get(kFilterContoursMinHeight)[0];
+    filterContoursSolidity = values.get(kFilterContoursSolidity);
+    filterContoursMinVertices = values.get(kFilterContoursMinVertices)[0];
+    filterContoursMinRatio = values.get(kFilterContoursMinRatio)[0];
+    targetRatio = values.get(kTargetRatio)[0];
+    horiFOV = values.get(kHoriFOV)[0];
+    vertFOV = values.get(kVertFOV)[0];
+
+    hsvLower = new Scalar(hsvThresholdHue[0], hsvThresholdSaturation[0], hsvThresholdValue[0]);
+    hsvUpper = new Scalar(hsvThresholdHue[1], hsvThresholdSaturation[1], hsvThresholdValue[1]);
+    viewPlaneWidth = 2.0 * Math.tan(Math.toRadians(horiFOV) / 2.0);
+    viewPlaneHeight = 2.0 * Math.tan(Math.toRadians(vertFOV) / 2.0);
+  }
+
+  /**
+   * The built-in settings.
+   */
+  public static VisionSettings defaults() {
+    Map<String, double[]> values = new LinkedHashMap<>();
+    values.put(kHsvThresholdHue, new double[] {58.0, 129.0});
+    values.put(kHsvThresholdSaturation, new double[] {80.0, 240.0});
+    values.put(kHsvThresholdValue, new double[] {98.0, 255.0});
+    values.put(kFilterContoursMinArea, new double[] {20.0});
+    values.put(kFilterContoursMinPerimeter, new double[] {20.0});
+    values.put(kFilterContoursMinWidth, new double[] {20.0});
+    values.put(kFilterContoursMinHeight, new double[] {20.0});
+    values.put(kFilterContoursSolidity, new double[] {0, 60.0});
+    values.put(kFilterContoursMinVertices, new double[] {0.0});
+    values.put(kFilterContoursMinRatio, new double[] {0.0});
+    values.put(kTargetRatio, new double[] {2.3});
+    values.put(kHoriFOV, new double[] {50.0});
+    values.put(kVertFOV, new double[] {40.0});
+    return new VisionSettings(values);
+  }
+
+  /**
+   * The names of all settings, in a stable order.
+   */
+  public Iterable<String> keys() {
+    return m_values.keySet();
+  }
+
+  /**
+   * A copy of a setting's value; ranges have two elements, others one.
+   * Null if the key is unknown.
+   */
+  public double[] get(String key) {
+    double[] value = m_values.get(key);
+    return value != null ? value.clone() : null;
+  }
+
+  /**
+   * A snapshot with one setting changed.
+   * @param key the setting name
+   * @param value the new value, with the same number of elements as the current one
+   * @return the new snapshot, or this one if the key is unknown, the value has the
+   *     wrong length or nothing changed
+   */
+  public VisionSettings with(String key, double[] value) {
+    double[] current = m_values.get(key);
+    if (current == null || value == null || value.length != current.length
+        || Arrays.equals(current, value)) {
+      return this;
+    }
+    Map<String, double[]> values = new LinkedHashMap<>(m_values);
+    values.put(key, value.clone());
+    return new VisionSettings(values);
+  }
+}
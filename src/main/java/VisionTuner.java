@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableValue;
+
+/**
+ * Exposes a pipeline's VisionSettings as NetworkTables entries and persists
+ * changes to a local JSON file.
+ *
+ * <p>Each setting is an entry under the pipeline's {@code config} subtable:
+ * a number for single values and a two-element number array for ranges.
+ * When the robot or a dashboard changes one, a new settings snapshot is built
+ * and handed to the pipeline, and the file is rewritten so the tuned values
+ * are loaded again after a reboot. Changes are saved once they have stopped
+ * for a second, so dragging a slider rewrites the file only once.
+ *
+ * <p>The rPi's root filesystem is read-only unless the dashboard's "Writable"
+ * tab is selected. While it is, the file is written to RAM-backed /tmp
+ * instead, and loaded from there; the copy is moved to the real file as soon
+ * as the filesystem is made writable, and is lost if the rPi reboots first.
+ *
+ * <p>The file holds one object per pipeline table, so several pipelines can
+ * share it.
+ */
+public final class VisionTuner {
+  private static final Object s_fileLock = new Object();
+  private static final long kSaveDelayMs = 1000;
+  private static final long kPersistCheckMs = 5000;
+  private static final ScheduledExecutorService s_saver = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Vision settings saver");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final String m_file;
+  // where changes are kept while m_file's filesystem is read-only
+  private final Path m_copy;
+  private final String m_section;
+  private final Consumer<VisionSettings> m_apply;
+  private VisionSettings m_settings;
+  private NetworkTable m_config;
+  private int m_listener;
+  private ScheduledFuture<?> m_pendingSave;
+  // guarded by s_fileLock
+  private ScheduledFuture<?> m_pendingPersist;
+
+  /**
+   * Create a tuner, loading any persisted values over the given settings.
+   * @param file the JSON file to persist to, or null to not persist
+   * @param section the pipeline's key in the file, normally its NT table path
+   * @param initial the settings to start from
+   * @param apply called with each new snapshot, including the loaded one
+   */
+  public VisionTuner(String file, String section, VisionSettings initial, Consumer<VisionSettings> apply) {
+    m_file = file;
+    m_copy = file == null ? null : Paths.get("/tmp", Paths.get(file).getFileName().toString());
+    m_section = section;
+    m_apply = apply;
+    m_settings = load(initial);
+    m_apply.accept(m_settings);
+  }
+
+  /**
+   * Publish the settings and start listening for changes.
+   * @param config the table to put the setting entries in
+   */
+  public synchronized void start(NetworkTable config) {
+    for (String key : m_settings.keys()) {
+      double[] value = m_settings.get(key);
+      if (value.length == 1) {
+        config.getEntry(key).setDouble(value[0]);
+      } else {
+        config.getEntry(key).setDoubleArray(value);
+      }
+    }
+
+    m_config = config;
+    m_listener = config.addEntryListener((table, key, entry, value, flags) -> update(key, value),
+        EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+  }
+
+  /**
+   * Stop listening for changes.
+   */
+  public synchronized void stop() {
+    if (m_config != null) {
+      m_config.removeEntryListener(m_listener);
+      m_config = null;
+    }
+  }
+
+  private synchronized void update(String key, NetworkTableValue value) {
+    double[] values;
+    if (value.isDouble()) {
+      values = new double[] {value.getDouble()};
+    } else if (value.isDoubleArray()) {
+      values = value.getDoubleArray();
+    } else {
+      return;
+    }
+
+    VisionSettings updated = m_settings.with(key, values);
+    if (updated == m_settings) {
+      return;
+    }
+    System.out.println("vision setting '" + m_section + "/" + key + "' changed");
+    m_settings = updated;
+    m_apply.accept(updated);
+    if (m_file != null) {
+      if (m_pendingSave != null) {
+        m_pendingSave.cancel(false);
+      }
+      m_pendingSave = s_saver.schedule(() -> save(updated), kSaveDelayMs, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private VisionSettings load(VisionSettings settings) {
+    if (m_file == null) {
+      return settings;
+    }
+
+    synchronized (s_fileLock) {
+      Path source = newest();
+      JsonObject section;
+      try (Reader reader = Files.newBufferedReader(source)) {
+        JsonElement top = new JsonParser().parse(reader);
+        if (!top.isJsonObject() || !top.getAsJsonObject().has(m_section)) {
+          return settings;
+        }
+        section = top.getAsJsonObject().getAsJsonObject(m_section);
+      } catch (IOException ex) {
+        // nothing tuned yet
+        return settings;
+      } catch (RuntimeException ex) {
+        System.err.println("could not read vision settings from '" + source + "': " + ex);
+        return settings;
+      }
+
+      // a bad value, e.g. from a hand edit, skips only its own key
+      for (String key : section.keySet()) {
+        JsonElement element = section.get(key);
+        double[] value;
+        try {
+          if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            value = new double[array.size()];
+            for (int i = 0; i < value.length; i++) {
+              value[i] = array.get(i).getAsDouble();
+            }
+          } else {
+            value = new double[] {element.getAsDouble()};
+          }
+        } catch (RuntimeException ex) {
+          System.err.println("ignoring vision setting '" + m_section + "/" + key + "' in '" + source + "': " + ex);
+          continue;
+        }
+        settings = settings.with(key, value);
+      }
+      System.out.println("Loaded vision settings for '" + m_section + "' from " + source);
+      return settings;
+    }
+  }
+
+  private void save(VisionSettings settings) {
+    synchronized (s_fileLock) {
+      JsonObject top = read(newest());
+      JsonObject section = new JsonObject();
+      for (String key : settings.keys()) {
+        JsonArray array = new JsonArray();
+        for (double v : settings.get(key)) {
+          array.add(v);
+        }
+        section.add(key, array);
+      }
+      top.add(m_section, section);
+
+      Path path = Paths.get(m_file);
+      if (!ReadOnlyMounts.isReadOnly(path)) {
+        if (write(path, top)) {
+          deleteCopy();
+        }
+        return;
+      }
+
+      // Never remount: that would undo a "Writable" choice made on the dashboard
+      if (write(m_copy, top) && m_pendingPersist == null) {
+        System.out.println("'" + m_file + "' is read-only, keeping vision settings in " + m_copy
+            + " until the rPi is made writable");
+        m_pendingPersist = s_saver.scheduleWithFixedDelay(this::persist, kPersistCheckMs, kPersistCheckMs,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Move the /tmp copy to the real file once its filesystem is writable.
+   */
+  private void persist() {
+    synchronized (s_fileLock) {
+      Path path = Paths.get(m_file);
+      if (Files.exists(m_copy) && ReadOnlyMounts.isReadOnly(path)) {
+        return;
+      }
+      // another tuner sharing the file may have moved it already
+      if (Files.exists(m_copy) && write(path, read(m_copy))) {
+        deleteCopy();
+        System.out.println("Saved vision settings kept in " + m_copy + " to " + m_file);
+      }
+      if (!Files.exists(m_copy)) {
+        m_pendingPersist.cancel(false);
+        m_pendingPersist = null;
+      }
+    }
+  }
+
+  /**
+   * The /tmp copy if it holds changes newer than the file, else the file.
+   */
+  private Path newest() {
+    Path path = Paths.get(m_file);
+    try {
+      if (!m_copy.equals(path) && Files.exists(m_copy) && (!Files.exists(path)
+          || Files.getLastModifiedTime(m_copy).compareTo(Files.getLastModifiedTime(path)) >= 0)) {
+        return m_copy;
+      }
+    } catch (IOException ex) {
+      // use the file
+    }
+    return path;
+  }
+
+  private static JsonObject read(Path path) {
+    try (Reader reader = Files.newBufferedReader(path)) {
+      JsonElement existing = new JsonParser().parse(reader);
+      if (existing.isJsonObject()) {
+        return existing.getAsJsonObject();
+      }
+    } catch (IOException | RuntimeException ex) {
+      // start a new file
+    }
+    return new JsonObject();
+  }
+
+  private static boolean write(Path path, JsonObject contents) {
+    // Write then rename, so a power cut never leaves a half-written file
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    Path temp = Paths.get(path + ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(temp)) {
+        gson.toJson(contents, writer);
+      }
+      Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException ex) {
+      System.err.println("could not save vision settings to '" + path + "': " + ex);
+      return false;
+    }
+  }
+
+  private void deleteCopy() {
+    if (m_copy.equals(Paths.get(m_file))) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(m_copy);
+    } catch (IOException ex) {
+      System.err.println("could not delete '" + m_copy + "': " + ex);
+    }
+  }
+}
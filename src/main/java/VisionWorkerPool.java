@@ -0,0 +1,126 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.wpi.cscore.VideoSource;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import org.opencv.core.Mat;
+
+/**
+ * Runs the vision pipelines of several cameras on one fixed-size thread pool.
+ *
+ * <p>Each camera is a task that grabs one frame, processes it and then queues
+ * itself again, so a camera's pipeline is never run by two threads at once
+ * and cameras take turns when there are more cameras than threads.
+ */
+public final class VisionWorkerPool {
+  private static final long kWindowNanos = 1_000_000_000L;
+
+  private final ExecutorService m_executor;
+  private final NetworkTableEntry m_aggregateFps;
+  private final Map<String, CameraTask> m_tasks = new ConcurrentHashMap<>();
+
+  private final AtomicInteger m_windowFrames = new AtomicInteger();
+  private long m_windowStart = System.nanoTime();
+
+  /**
+   * A camera and its profiles, processed one frame per task run with the active profile.
+   */
+  private final class CameraTask implements Runnable {
+    private final String m_name;
+    private final FrameGrabber m_grabber;
+    private final ProfileSelector m_profiles;
+    private final Mat m_frame = new Mat();
+    private volatile boolean m_stopped;
+
+    CameraTask(String name, VideoSource camera, ProfileSelector profiles, NetworkTable table) {
+      m_name = name;
+      m_grabber = new FrameGrabber(camera, table);
+      m_profiles = profiles;
+    }
+
+    @Override
+    public void run() {
+      if (m_stopped) {
+        m_grabber.close();
+        return;
+      }
+      try {
+        // A timeout is counted and reported by the grabber
+        long frameTime = m_grabber.grab(m_frame);
+        if (frameTime != 0) {
+          m_profiles.active().process(m_frame, frameTime);
+          frameDone();
+        }
+      } catch (RuntimeException ex) {
+        System.err.println("vision error on '" + m_name + "': " + ex);
+      }
+      m_executor.execute(this);
+    }
+  }
+
+  /**
+   * Create a pool.
+   * @param threads the number of worker threads, normally the number of cores
+   * @param perfTable the table to publish aggregate FPS under, or null
+   */
+  public VisionWorkerPool(int threads, NetworkTable perfTable) {
+    AtomicInteger count = new AtomicInteger();
+    m_executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "Vision worker " + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    m_aggregateFps = perfTable != null ? perfTable.getEntry("aggregate fps") : null;
+  }
+
+  /**
+   * Start processing a camera on the pool.
+   * @param name the camera name, for error messages
+   * @param camera the video source to process
+   * @param profiles the camera's own profiles and their pipeline instances
+   * @param table the pipeline's table, to publish capture counts under, or null
+   */
+  public void add(String name, VideoSource camera, ProfileSelector profiles, NetworkTable table) {
+    CameraTask task = new CameraTask(name, camera, profiles, table);
+    m_tasks.put(name, task);
+    m_executor.execute(task);
+  }
+
+  /**
+   * Stop processing a camera. Its current frame, if any, still finishes.
+   * @param name the name the camera was added with
+   */
+  public void remove(String name) {
+    CameraTask task = m_tasks.remove(name);
+    if (task != null) {
+      task.m_stopped = true;
+      // free the sink's name now so the camera can be added again right away
+      task.m_grabber.unregister();
+    }
+  }
+
+  /**
+   * Count a processed frame and publish the aggregate FPS once per window.
+   */
+  private void frameDone() {
+    m_windowFrames.incrementAndGet();
+
+    long now = System.nanoTime();
+    synchronized (this) {
+      long elapsed = now - m_windowStart;
+      if (elapsed < kWindowNanos) {
+        return;
+      }
+      int frames = m_windowFrames.getAndSet(0);
+      m_windowStart = now;
+      if (m_aggregateFps != null) {
+        m_aggregateFps.setDouble(frames * 1e9 / elapsed);
+      }
+    }
+  }
+}